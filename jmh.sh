@@ -0,0 +1,37 @@
+#!/bin/bash
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+set -euo pipefail
+
+if [ "${1:-}" = "-h" ]; then
+  echo "Usage: ./jmh.sh [JMH options]"
+  echo
+  echo "Builds the project with the 'jmh' profile and runs the JMH benchmarks in src/jmh/java."
+  echo "All arguments are passed on to JMH, e.g. a benchmark regex or '-prof perfnorm'."
+  echo
+  echo "Examples:"
+  echo "./jmh.sh ParseKernelBenchmark"
+  echo "./jmh.sh ParseKernelBenchmark.merykitty -p stations=10000 -prof perfnorm"
+  exit 1
+fi
+
+./mvnw -B -q -P jmh -Dquick clean package
+./mvnw -B -q -P jmh dependency:build-classpath -Dmdep.includeScope=runtime -Dmdep.outputFile=target/jmh.classpath
+
+java --enable-preview --add-modules jdk.incubator.vector \
+  --class-path "target/average-1.0.0-SNAPSHOT.jar:$(cat target/jmh.classpath)" \
+  org.openjdk.jmh.Main "$@"
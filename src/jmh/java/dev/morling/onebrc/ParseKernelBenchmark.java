@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single-threaded JMH benchmark of the parse kernels of a few engines, run against an input that is
+ * generated and mapped once per trial. This leaves out JVM startup, mmap() and munmap() so that only
+ * the hot loops are compared.
+ * <p>
+ * Scores are in ns/row, as every invocation parses exactly {@link #ROWS} rows. To get bytes/cycle,
+ * run with {@code -prof perfnorm}, which reports cycles/row, and divide the bytes/row printed at
+ * setup by it.
+ * <p>
+ * Run with {@code ./jmh.sh ParseKernelBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "--add-modules", "jdk.incubator.vector" })
+public class ParseKernelBenchmark {
+
+    static final int ROWS = 1_000_000;
+
+    // Padding so that the SWAR kernels can over-read past the last row
+    private static final int PADDING = 256;
+
+    @Param({ "413", "10000" })
+    int stations;
+
+    private Arena arena;
+    private MemorySegment segment;
+    private MappedByteBuffer mappedBuffer;
+    private long size;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] data = generate(stations, ROWS, 42L);
+        size = data.length;
+        System.out.printf("%nGenerated %,d rows for %,d stations, %.2f bytes/row%n", ROWS, stations, (double) size / ROWS);
+
+        arena = Arena.ofShared();
+        segment = arena.allocate(size + PADDING, 64);
+        MemorySegment.copy(MemorySegment.ofArray(data), 0, segment, 0, size);
+
+        // vemana's kernel only operates on MappedByteBuffers
+        file = Files.createTempFile("parse-kernel-", ".txt");
+        Files.write(file, data);
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mappedBuffer.order(ByteOrder.nativeOrder());
+            mappedBuffer.load();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        arena.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Object thomaswue() {
+        long start = segment.address();
+        return CalculateAverage_thomaswue.parseLoop(new AtomicLong(start), start + size, start, new CalculateAverage_thomaswue.ResultTable(false));
+    }
+
+    // The cost of --percentiles over the plain min/max/sum/count path
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Object thomaswuePercentiles() {
+        long start = segment.address();
+        return CalculateAverage_thomaswue.parseLoop(new AtomicLong(start), start + size, start, new CalculateAverage_thomaswue.ResultTable(true));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Object merykitty() {
+        return CalculateAverage_merykitty.processFile(segment, 0, size);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Object vemana() {
+        var state = new CalculateAverage_vemana.ShardProcessorState(14);
+        int end = (int) size;
+        int pos = 0;
+        while (pos < end) {
+            pos = state.processLine(mappedBuffer, pos);
+        }
+        return state;
+    }
+
+    static byte[] generate(int stationCount, int rows, long seed) throws IOException {
+        List<byte[]> names = new ArrayList<>(stationCount);
+        try (var reader = new BufferedReader(new FileReader("data/weather_stations.csv", StandardCharsets.UTF_8))) {
+            String line;
+            while (names.size() < stationCount && (line = reader.readLine()) != null) {
+                if (!line.startsWith("#")) {
+                    names.add(line.substring(0, line.indexOf(';')).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        if (names.size() < stationCount) {
+            throw new IllegalArgumentException("Only " + names.size() + " stations available");
+        }
+
+        Random random = new Random(seed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(rows * 16);
+        byte[] temperature = new byte[8];
+        for (int i = 0; i < rows; i++) {
+            out.writeBytes(names.get(random.nextInt(stationCount)));
+            out.write(';');
+            int value = (int) Math.max(-999, Math.min(999, Math.round(random.nextGaussian(150, 100))));
+            out.write(temperature, 0, ExpectedResult.formatTenths(temperature, 0, value));
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+}
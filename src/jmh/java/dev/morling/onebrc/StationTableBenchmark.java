@@ -0,0 +1,126 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single-threaded benchmark of the thomaswue parse loop with up to 10M distinct keys, where its
+ * result table has to grow from the initial 2^17 slots. Each invocation parses {@link #ROWS} rows
+ * into a new table, so the score in ns/row includes growing it.
+ * <p>
+ * Keys look like sensor IDs, {@code sensor-<n>} padded to 8 to 37 bytes, so that they take all the
+ * paths of the name lookup. With 10M keys, about 86% of them occur in the input.
+ * <p>
+ * Run with {@code ./jmh.sh StationTableBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "--enable-preview", "-Xmx3g" })
+public class StationTableBenchmark {
+
+    static final int ROWS = 20_000_000;
+
+    // Padding so that the SWAR kernel can over-read past the last row
+    private static final int PADDING = 256;
+
+    @Param({ "10000", "1000000", "10000000" })
+    int keys;
+
+    private Arena arena;
+    private MemorySegment segment;
+    private long size;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Path file = Files.createTempFile("station-table-", ".txt");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 20)) {
+                generate(out, keys, ROWS, 42L);
+            }
+            size = Files.size(file);
+            System.out.printf("%nGenerated %,d rows for %,d keys, %.2f bytes/row%n", ROWS, keys, (double) size / ROWS);
+
+            arena = Arena.ofShared();
+            segment = arena.allocate(size + PADDING, 64);
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MemorySegment.copy(channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena), 0, segment, 0, size);
+            }
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        arena.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Object thomaswue() {
+        long start = segment.address();
+        return CalculateAverage_thomaswue.parseLoop(new AtomicLong(start), start + size, start, new CalculateAverage_thomaswue.ResultTable(false));
+    }
+
+    static void generate(OutputStream out, int keys, int rows, long seed) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < rows; i++) {
+            int key = random.nextInt(keys);
+            StringBuilder line = new StringBuilder(40).append("sensor-").append(key);
+            for (int padding = key % 24; padding > 0; padding--) {
+                line.append('_');
+            }
+            int value = random.nextInt(-999, 1000);
+            line.append(';').append(value / 10).append('.').append(Math.abs(value % 10)).append('\n');
+            if (value > -10 && value < 0) {
+                line.insert(line.indexOf(";") + 1, '-');
+            }
+            out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
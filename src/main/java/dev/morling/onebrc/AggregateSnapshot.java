@@ -0,0 +1,290 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Binary snapshot of per-station aggregates, so that results can be stored, merged and compared
+ * without going through the text output. Temperatures are fixed-point tenths of a degree.
+ * <p>
+ * Layout, little-endian, sorted by station name:
+ *
+ * <pre>
+ * long    magic
+ * int     version
+ * int     n                   number of stations
+ * int     nameOffset[n + 1]   offsets into the name dictionary
+ * byte    names[]             UTF-8, padded to 8 bytes
+ * long    sum[n]
+ * long    count[n]
+ * short   min[n]
+ * short   max[n]
+ * </pre>
+ *
+ * A snapshot is always backed by this layout, either on the heap or memory-mapped from a file, so
+ * writing it is a plain copy and reading it back is a plain mmap().
+ */
+public class AggregateSnapshot {
+
+    private static final long MAGIC = 0x31425243534e4150L; // "1BRCSNAP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final MemorySegment segment;
+    private final int size;
+    private final long namesStart;
+    private final long sumStart;
+    private final long countStart;
+    private final long minStart;
+    private final long maxStart;
+
+    private AggregateSnapshot(MemorySegment segment) {
+        if (segment.byteSize() < HEADER_SIZE || segment.get(LONG, 0) != MAGIC) {
+            throw new IllegalArgumentException("Not an aggregate snapshot");
+        }
+        if (segment.get(INT, 8) != VERSION) {
+            throw new IllegalArgumentException("Unsupported snapshot version " + segment.get(INT, 8));
+        }
+        this.segment = segment;
+        this.size = segment.get(INT, 12);
+        this.namesStart = HEADER_SIZE + (size + 1L) * Integer.BYTES;
+        this.sumStart = align(namesStart + segment.get(INT, HEADER_SIZE + (long) size * Integer.BYTES));
+        this.countStart = sumStart + (long) size * Long.BYTES;
+        this.minStart = countStart + (long) size * Long.BYTES;
+        this.maxStart = minStart + (long) size * Short.BYTES;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static AggregateSnapshot of(MemorySegment segment) {
+        return new AggregateSnapshot(segment);
+    }
+
+    public static AggregateSnapshot map(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return map(channel, 0);
+        }
+    }
+
+    // Maps the snapshot stored at position until the end of the file.
+    public static AggregateSnapshot map(FileChannel channel, long position) throws IOException {
+        return new AggregateSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, position, channel.size() - position, Arena.ofAuto()));
+    }
+
+    public static boolean isSnapshot(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            return channel.read(header, 0) == Long.BYTES && header.getLong(0) == MAGIC;
+        }
+    }
+
+    public static AggregateSnapshot merge(List<AggregateSnapshot> snapshots) {
+        Builder builder = builder();
+        for (AggregateSnapshot snapshot : snapshots) {
+            builder.addAll(snapshot);
+        }
+        return builder.build();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String name(int i) {
+        return new String(segment.asSlice(nameOffset(i), nameLength(i)).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+    }
+
+    // Where the UTF-8 name of station i starts in segment(), for comparing names without decoding them.
+    long nameOffset(int i) {
+        return namesStart + segment.get(INT, HEADER_SIZE + (long) i * Integer.BYTES);
+    }
+
+    int nameLength(int i) {
+        return segment.get(INT, HEADER_SIZE + (i + 1L) * Integer.BYTES) - segment.get(INT, HEADER_SIZE + (long) i * Integer.BYTES);
+    }
+
+    MemorySegment segment() {
+        return segment;
+    }
+
+    public long sum(int i) {
+        return segment.get(LONG, sumStart + (long) i * Long.BYTES);
+    }
+
+    public long count(int i) {
+        return segment.get(LONG, countStart + (long) i * Long.BYTES);
+    }
+
+    public int min(int i) {
+        return segment.get(SHORT, minStart + (long) i * Short.BYTES);
+    }
+
+    public int max(int i) {
+        return segment.get(SHORT, maxStart + (long) i * Short.BYTES);
+    }
+
+    public long byteSize() {
+        return maxStart + (long) size * Short.BYTES;
+    }
+
+    public void write(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeTo(channel);
+        }
+    }
+
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        var buffer = segment.asSlice(0, byteSize()).asByteBuffer();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(size * 32).append('{');
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(name(i)).append('=').append(formatResult(i));
+        }
+        return sb.append('}').toString();
+    }
+
+    private String formatResult(int i) {
+        return round(min(i) / 10.0) + "/" + round((sum(i) / 10.0) / count(i)) + "/" + round(max(i) / 10.0);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    /** Collects aggregates, merging repeated stations, and lays them out as a snapshot. */
+    public static class Builder {
+
+        // min, max, sum, count
+        private final TreeMap<String, long[]> stations = new TreeMap<>();
+
+        public Builder add(String name, long min, long max, long sum, long count) {
+            long[] current = stations.get(name);
+            if (current == null) {
+                stations.put(name, new long[]{ min, max, sum, count });
+            }
+            else {
+                current[0] = Math.min(current[0], min);
+                current[1] = Math.max(current[1], max);
+                current[2] += sum;
+                current[3] += count;
+            }
+            return this;
+        }
+
+        public Builder addAll(AggregateSnapshot snapshot) {
+            for (int i = 0; i < snapshot.size(); i++) {
+                add(snapshot.name(i), snapshot.min(i), snapshot.max(i), snapshot.sum(i), snapshot.count(i));
+            }
+            return this;
+        }
+
+        public AggregateSnapshot build() {
+            int n = stations.size();
+            List<byte[]> names = new ArrayList<>(n);
+            long namesSize = 0;
+            for (String name : stations.keySet()) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                names.add(bytes);
+                namesSize += bytes.length;
+            }
+            long namesStart = HEADER_SIZE + (n + 1L) * Integer.BYTES;
+            long sumStart = align(namesStart + namesSize);
+            long countStart = sumStart + (long) n * Long.BYTES;
+            long minStart = countStart + (long) n * Long.BYTES;
+            long maxStart = minStart + (long) n * Short.BYTES;
+
+            MemorySegment segment = MemorySegment.ofArray(new byte[Math.toIntExact(maxStart + (long) n * Short.BYTES)]);
+            segment.set(LONG, 0, MAGIC);
+            segment.set(INT, 8, VERSION);
+            segment.set(INT, 12, n);
+
+            int i = 0;
+            long nameOffset = 0;
+            for (long[] values : stations.values()) {
+                byte[] name = names.get(i);
+                segment.set(INT, HEADER_SIZE + (long) i * Integer.BYTES, (int) nameOffset);
+                MemorySegment.copy(name, 0, segment, ValueLayout.JAVA_BYTE, namesStart + nameOffset, name.length);
+                nameOffset += name.length;
+
+                segment.set(SHORT, minStart + (long) i * Short.BYTES, toShort(values[0]));
+                segment.set(SHORT, maxStart + (long) i * Short.BYTES, toShort(values[1]));
+                segment.set(LONG, sumStart + (long) i * Long.BYTES, values[2]);
+                segment.set(LONG, countStart + (long) i * Long.BYTES, values[3]);
+                i++;
+            }
+            segment.set(INT, HEADER_SIZE + (long) n * Integer.BYTES, (int) nameOffset);
+            return new AggregateSnapshot(segment);
+        }
+
+        private static short toShort(long value) {
+            if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("Temperature out of range: " + value);
+            }
+            return (short) value;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("print")) {
+            System.out.println(map(Path.of(args[1])));
+        }
+        else if (args.length >= 3 && args[0].equals("merge")) {
+            List<AggregateSnapshot> snapshots = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                snapshots.add(map(Path.of(args[i])));
+            }
+            merge(snapshots).write(Path.of(args[1]));
+        }
+        else {
+            System.out.println("Usage: AggregateSnapshot print <snapshot>");
+            System.out.println("       AggregateSnapshot merge <output snapshot> <snapshot>...");
+            System.exit(1);
+        }
+    }
+}
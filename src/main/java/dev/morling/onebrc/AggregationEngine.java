@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+/**
+ * An engine that aggregates measurements into per-station min/sum/count/max, so that the engines
+ * can be run, compared and swapped by one runner instead of each being its own main() with its
+ * own input file and output format. Implementations are found with {@link ServiceLoader}, see
+ * META-INF/services/dev.morling.onebrc.AggregationEngine, and must not keep state between calls.
+ * <p>
+ * The result is an {@link AggregateSnapshot}, temperatures being in tenths of a degree, whose
+ * {@code toString()} is the output of the baseline. See {@link EngineRunner} for the runner.
+ */
+public interface AggregationEngine {
+
+    enum Capability {
+        /** Reads any {@link ReadableByteChannel}, e.g. a pipe, not only files. */
+        STREAMING,
+        /** Uses the number of threads it is given, instead of picking its own. */
+        THREAD_COUNT,
+        /** Handles any number of distinct stations, not only the 10,000 of the rules. */
+        HIGH_CARDINALITY,
+        /** Needs the jdk.incubator.vector module. */
+        VECTOR_API
+    }
+
+    /** Short name, e.g. "thomaswue". */
+    String name();
+
+    Set<Capability> capabilities();
+
+    /** Aggregates all measurements in the file. */
+    AggregateSnapshot aggregate(Path file, int threads) throws IOException, InterruptedException;
+
+    /** Aggregates all measurements read from the channel, for engines with {@link Capability#STREAMING}. */
+    default AggregateSnapshot aggregate(ReadableByteChannel channel, int threads) throws IOException, InterruptedException {
+        throw new UnsupportedOperationException(name() + " only reads files");
+    }
+
+    /** Whether the engine can run in this JVM, i.e. the modules it needs are there. */
+    default boolean isAvailable() {
+        return !capabilities().contains(Capability.VECTOR_API) || ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    /** All engines on the class path, available or not. */
+    static List<AggregationEngine> all() {
+        return ServiceLoader.load(AggregationEngine.class).stream().map(ServiceLoader.Provider::get).toList();
+    }
+
+    /** The engine of the given name. */
+    static AggregationEngine named(String name) {
+        return all().stream()
+                .filter(engine -> engine.name().equals(name))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No engine named " + name));
+    }
+}
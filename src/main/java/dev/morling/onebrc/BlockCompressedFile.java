@@ -0,0 +1,293 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Measurements file made of independently deflated blocks of complete lines, so that the blocks can
+ * be decompressed in parallel. Blocks are written in whatever order the writers finish them; as the
+ * result doesn't depend on the order of the lines, readers don't care.
+ * <p>
+ * Layout, little-endian:
+ *
+ * <pre>
+ * long    magic
+ * int     version
+ * int     blockSize           maximum uncompressed size of a block
+ * byte    blocks[]            raw deflate streams
+ * index[blockCount]:
+ *   long  offset
+ *   int   compressedSize
+ *   int   uncompressedSize
+ * long    indexOffset
+ * long    magic
+ * </pre>
+ *
+ * The index is at the end so that it can be written after all blocks; the trailing magic tells a
+ * complete file from one whose writer didn't finish.
+ */
+public class BlockCompressedFile {
+
+    static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private static final long MAGIC = 0x31425243424c4b5aL; // "1BRCBLKZ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int TRAILER_SIZE = 16;
+
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final MemorySegment segment;
+    private final int blockSize;
+    private final int blockCount;
+    private final long indexOffset;
+
+    private BlockCompressedFile(MemorySegment segment) throws IOException {
+        long size = segment.byteSize();
+        if (size < HEADER_SIZE + TRAILER_SIZE || segment.get(LONG, 0) != MAGIC) {
+            throw new IllegalArgumentException("Not a block-compressed measurements file");
+        }
+        if (segment.get(INT, 8) != VERSION) {
+            throw new IllegalArgumentException("Unsupported version " + segment.get(INT, 8));
+        }
+        if (segment.get(LONG, size - Long.BYTES) != MAGIC) {
+            throw new IllegalArgumentException("Block-compressed measurements file is incomplete");
+        }
+        this.segment = segment;
+        this.blockSize = segment.get(INT, 12);
+        this.indexOffset = segment.get(LONG, size - TRAILER_SIZE);
+        if (blockSize <= 0 || indexOffset < HEADER_SIZE || indexOffset > size - TRAILER_SIZE || (size - TRAILER_SIZE - indexOffset) % INDEX_ENTRY_SIZE != 0) {
+            throw new IOException("Corrupt block-compressed measurements file, block size " + blockSize + ", index at " + indexOffset);
+        }
+        this.blockCount = Math.toIntExact((size - TRAILER_SIZE - indexOffset) / INDEX_ENTRY_SIZE);
+
+        // Checked up front so that inflate() only has to deal with corrupt deflate streams.
+        for (int i = 0; i < blockCount; i++) {
+            long entry = indexOffset + (long) i * INDEX_ENTRY_SIZE;
+            long offset = segment.get(LONG, entry);
+            int compressedSize = segment.get(INT, entry + 8);
+            int uncompressedSize = segment.get(INT, entry + 12);
+            if (offset < HEADER_SIZE || compressedSize < 0 || offset > indexOffset - compressedSize || uncompressedSize < 0 || uncompressedSize > blockSize) {
+                throw new IOException("Corrupt index entry for block " + i + ": offset " + offset + ", compressed size " + compressedSize
+                        + ", uncompressed size " + uncompressedSize);
+            }
+        }
+    }
+
+    // Inflater doesn't accept buffers of closeable shared arenas, hence the automatic one.
+    public static BlockCompressedFile map(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new BlockCompressedFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), Arena.ofAuto()));
+        }
+    }
+
+    public static boolean isBlockCompressed(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            return channel.read(header, 0) == Long.BYTES && header.getLong(0) == MAGIC;
+        }
+    }
+
+    public int blockCount() {
+        return blockCount;
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Decompresses a block into target, which must hold at least {@link #blockSize()} bytes, and
+     * returns its length. The block ends with a newline.
+     */
+    public int inflate(int block, MemorySegment target, Inflater inflater) throws DataFormatException {
+        long entry = indexOffset + (long) block * INDEX_ENTRY_SIZE;
+        long offset = segment.get(LONG, entry);
+        int compressedSize = segment.get(INT, entry + 8);
+        int uncompressedSize = segment.get(INT, entry + 12);
+
+        inflater.reset();
+        inflater.setInput(segment.asSlice(offset, compressedSize).asByteBuffer());
+        ByteBuffer output = target.asSlice(0, uncompressedSize).asByteBuffer();
+        while (output.hasRemaining() && !inflater.finished()) {
+            if (inflater.inflate(output) == 0 && inflater.needsInput()) {
+                break;
+            }
+        }
+        if (output.hasRemaining()) {
+            throw new DataFormatException("Block " + block + " is truncated");
+        }
+        return uncompressedSize;
+    }
+
+    /**
+     * Appends blocks to a file. {@link #writeLines} can be called concurrently; only appending the
+     * compressed block is serialized.
+     */
+    public static class Writer implements Closeable {
+
+        private final FileChannel channel;
+        private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        private final List<long[]> index = new ArrayList<>();
+        private long position = HEADER_SIZE;
+
+        public Writer(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            writeFully(ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN).putLong(MAGIC).putInt(VERSION).putInt(BLOCK_SIZE).flip(), 0);
+        }
+
+        /** Compresses text[0, length), which must be complete lines, as one or more blocks. */
+        public void writeLines(byte[] text, int length) throws IOException {
+            if (length > 0 && text[length - 1] != '\n') {
+                throw new IllegalArgumentException("Text must end with a newline");
+            }
+            Deflater deflater = deflaters.get();
+            byte[] compressed = new byte[BLOCK_SIZE + BLOCK_SIZE / 8];
+            for (int start = 0; start < length;) {
+                int end = start + BLOCK_SIZE;
+                if (end >= length) {
+                    end = length;
+                }
+                else {
+                    while (end > start && text[end - 1] != '\n') {
+                        end--;
+                    }
+                    if (end == start) {
+                        throw new IllegalArgumentException("Line longer than " + BLOCK_SIZE + " bytes");
+                    }
+                }
+
+                deflater.reset();
+                deflater.setInput(text, start, end - start);
+                deflater.finish();
+                int compressedSize = 0;
+                while (!deflater.finished()) {
+                    if (compressedSize == compressed.length) {
+                        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                    }
+                    compressedSize += deflater.deflate(compressed, compressedSize, compressed.length - compressedSize);
+                }
+                append(ByteBuffer.wrap(compressed, 0, compressedSize), end - start);
+                start = end;
+            }
+        }
+
+        private synchronized void append(ByteBuffer block, int uncompressedSize) throws IOException {
+            index.add(new long[]{ position, block.remaining(), uncompressedSize });
+            position += block.remaining();
+            writeFully(block, position - block.remaining());
+        }
+
+        private void writeFully(ByteBuffer buffer, long at) throws IOException {
+            while (buffer.hasRemaining()) {
+                at += channel.write(buffer, at);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try (channel) {
+                ByteBuffer tail = ByteBuffer.allocate(index.size() * INDEX_ENTRY_SIZE + TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                for (long[] entry : index) {
+                    tail.putLong(entry[0]).putInt((int) entry[1]).putInt((int) entry[2]);
+                }
+                tail.putLong(position).putLong(MAGIC).flip();
+                writeFully(tail, position);
+            }
+        }
+    }
+
+    // Compresses an existing measurements file, reading it in BLOCK_SIZE pieces.
+    private static void compress(Path input, Path output) throws IOException {
+        try (InputStream in = Files.newInputStream(input); Writer writer = new Writer(output)) {
+            byte[] buffer = new byte[BLOCK_SIZE];
+            int length = 0;
+            while (true) {
+                length += in.readNBytes(buffer, length, buffer.length - length);
+                // readNBytes() only returns less than requested at the end of the input.
+                if (length < buffer.length) {
+                    if (length > 0 && buffer[length - 1] != '\n') {
+                        buffer[length++] = '\n';
+                    }
+                    writer.writeLines(buffer, length);
+                    return;
+                }
+                int lineEnd = length;
+                while (lineEnd > 0 && buffer[lineEnd - 1] != '\n') {
+                    lineEnd--;
+                }
+                if (lineEnd == 0) {
+                    throw new IOException("Line longer than " + BLOCK_SIZE + " bytes");
+                }
+                writer.writeLines(buffer, lineEnd);
+                length -= lineEnd;
+                System.arraycopy(buffer, lineEnd, buffer, 0, length);
+            }
+        }
+    }
+
+    private static void decompress(Path input, OutputStream out) throws IOException, DataFormatException {
+        BlockCompressedFile file = map(input);
+        MemorySegment block = Arena.ofAuto().allocate(file.blockSize());
+        var channel = Channels.newChannel(out);
+        Inflater inflater = new Inflater(true);
+        for (int i = 0; i < file.blockCount(); i++) {
+            int length = file.inflate(i, block, inflater);
+            ByteBuffer buffer = block.asSlice(0, length).asByteBuffer();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        inflater.end();
+        out.flush();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && args[0].equals("compress")) {
+            compress(Path.of(args[1]), Path.of(args[2]));
+        }
+        else if (args.length == 2 && args[0].equals("decompress")) {
+            decompress(Path.of(args[1]), System.out);
+        }
+        else {
+            System.out.println("Usage: BlockCompressedFile compress <measurements file> <output file>");
+            System.out.println("       BlockCompressedFile decompress <file>");
+            System.exit(1);
+        }
+    }
+}
@@ -17,6 +17,7 @@ package dev.morling.onebrc;
 
 import sun.misc.Unsafe;
 
+import java.io.IOException;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.reflect.Field;
@@ -25,7 +26,9 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -94,6 +97,12 @@ public class CalculateAverage_artsiomkorzun {
 
     private static void execute() throws Exception {
         MemorySegment fileMemory = map(FILE);
+        Map<String, Aggregate> aggregates = aggregate(fileMemory, Runtime.getRuntime().availableProcessors());
+        System.out.println(text(aggregates));
+        System.out.close();
+    }
+
+    private static Map<String, Aggregate> aggregate(MemorySegment fileMemory, int parallelism) throws InterruptedException {
         long fileAddress = fileMemory.address();
         long fileSize = fileMemory.byteSize();
         int segmentCount = (int) ((fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
@@ -101,7 +110,6 @@ public class CalculateAverage_artsiomkorzun {
         AtomicInteger counter = new AtomicInteger();
         AtomicReference<Aggregates> result = new AtomicReference<>();
 
-        int parallelism = Runtime.getRuntime().availableProcessors();
         Aggregator[] aggregators = new Aggregator[parallelism];
 
         for (int i = 0; i < aggregators.length; i++) {
@@ -113,9 +121,13 @@ public class CalculateAverage_artsiomkorzun {
             aggregators[i].join();
         }
 
-        Map<String, Aggregate> aggregates = result.get().aggregate();
-        System.out.println(text(aggregates));
-        System.out.close();
+        Aggregates aggregates = result.get();
+        try {
+            return aggregates.aggregate();
+        }
+        finally {
+            aggregates.free();
+        }
     }
 
     private static MemorySegment map(Path file) {
@@ -166,20 +178,51 @@ public class CalculateAverage_artsiomkorzun {
     private record Aggregate(int min, int max, long sum, int cnt) {
     }
 
+    public static final class Engine implements AggregationEngine {
+
+        @Override
+        public String name() {
+            return "artsiomkorzun";
+        }
+
+        @Override
+        public Set<Capability> capabilities() {
+            return EnumSet.of(Capability.THREAD_COUNT);
+        }
+
+        @Override
+        public AggregateSnapshot aggregate(Path file, int threads) throws IOException, InterruptedException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ); Arena arena = Arena.ofShared()) {
+                MemorySegment fileMemory = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+                AggregateSnapshot.Builder builder = AggregateSnapshot.builder();
+                for (Map.Entry<String, Aggregate> entry : CalculateAverage_artsiomkorzun.aggregate(fileMemory, threads).entrySet()) {
+                    Aggregate aggregate = entry.getValue();
+                    builder.add(entry.getKey(), aggregate.min, aggregate.max, aggregate.sum, aggregate.cnt);
+                }
+                return builder.build();
+            }
+        }
+    }
+
     private static class Aggregates {
 
         private static final int ENTRIES = 64 * 1024;
         private static final int SIZE = 128 * ENTRIES;
         private static final int MASK = (ENTRIES - 1) << 7;
 
+        private final long address;
         private final long pointer;
 
         public Aggregates() {
-            long address = UNSAFE.allocateMemory(SIZE + 4096);
+            address = UNSAFE.allocateMemory(SIZE + 4096);
             pointer = (address + 4095) & (~4095);
             UNSAFE.setMemory(pointer, SIZE, (byte) 0);
         }
 
+        public void free() {
+            UNSAFE.freeMemory(address);
+        }
+
         public long find(long word, int hash) {
             long address = pointer + offset(hash);
             long w = word(address + 24);
@@ -379,6 +422,7 @@ public class CalculateAverage_artsiomkorzun {
 
                 if (rights != null) {
                     aggregates.merge(rights);
+                    rights.free();
                 }
             }
         }
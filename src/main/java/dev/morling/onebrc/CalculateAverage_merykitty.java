@@ -25,7 +25,9 @@ import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.VectorOperators;
@@ -56,7 +58,7 @@ public class CalculateAverage_merykitty {
     }
 
     // An open-address map that is specialized for this task
-    private static class PoorManMap {
+    static class PoorManMap {
 
         // 100-byte key + 4-byte hash + 4-byte size +
         // 2-byte min + 2-byte max + 8-byte sum + 8-byte count
@@ -270,7 +272,7 @@ public class CalculateAverage_merykitty {
     }
 
     // Process all lines that start in [offset, limit)
-    private static PoorManMap processFile(MemorySegment data, long offset, long limit) {
+    static PoorManMap processFile(MemorySegment data, long offset, long limit) {
         var aggrMap = new PoorManMap();
         // Find the start of a new line
         if (offset != 0) {
@@ -307,9 +309,12 @@ public class CalculateAverage_merykitty {
     }
 
     public static void main(String[] args) throws InterruptedException, IOException {
-        int processorCnt = Runtime.getRuntime().availableProcessors();
+        System.out.println(aggregate(Path.of(FILE), Runtime.getRuntime().availableProcessors()));
+    }
+
+    static TreeMap<String, Aggregator> aggregate(Path path, int processorCnt) throws InterruptedException, IOException {
         var res = new TreeMap<String, Aggregator>();
-        try (var file = FileChannel.open(Path.of(FILE), StandardOpenOption.READ);
+        try (var file = FileChannel.open(path, StandardOpenOption.READ);
                 var arena = Arena.ofShared()) {
             var data = file.map(MapMode.READ_ONLY, 0, file.size(), arena);
             long chunkSize = Math.ceilDiv(data.byteSize(), processorCnt);
@@ -332,7 +337,29 @@ public class CalculateAverage_merykitty {
                 aggrMap.mergeInto(res);
             }
         }
+        return res;
+    }
+
+    public static final class Engine implements AggregationEngine {
+
+        @Override
+        public String name() {
+            return "merykitty";
+        }
+
+        @Override
+        public Set<Capability> capabilities() {
+            return EnumSet.of(Capability.THREAD_COUNT, Capability.VECTOR_API);
+        }
 
-        System.out.println(res);
+        @Override
+        public AggregateSnapshot aggregate(Path file, int threads) throws IOException, InterruptedException {
+            AggregateSnapshot.Builder builder = AggregateSnapshot.builder();
+            for (var entry : CalculateAverage_merykitty.aggregate(file, threads).entrySet()) {
+                Aggregator aggregator = entry.getValue();
+                builder.add(entry.getKey(), aggregator.min, aggregator.max, aggregator.sum, aggregator.count);
+            }
+            return builder.build();
+        }
     }
 }
@@ -16,9 +16,6 @@
 package dev.morling.onebrc;
 
 import java.io.IOException;
-import java.lang.reflect.InaccessibleObjectException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
@@ -26,6 +23,8 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.function.Supplier;
 
@@ -72,9 +71,9 @@ public class CalculateAverage_shipilev {
 
     // Employ direct unmapping techniques to alleviate the cost of system
     // unmmapping on process termination. This matters for very short runs
-    // on highly parallel machines. This unfortunately calls into private
-    // methods of buffers themselves. If not available on target JVM, the
-    // feature would automatically turn off.
+    // on highly parallel machines. This goes through Unmapper.release(),
+    // i.e. Unsafe.invokeCleaner() on a background thread, which needs no
+    // --add-opens.
     private static final boolean DIRECT_UNMMAPS = true;
 
     // ========================= Storage =========================
@@ -94,11 +93,9 @@ public class CalculateAverage_shipilev {
     // to merge it a little.
     private static final ConcurrentLinkedQueue<MeasurementsMap> ALL_MAPS = new ConcurrentLinkedQueue<>();
 
-    // Releasable mmaped buffers that workers are done with. These can be un-mapped
-    // in background. Part of the protocol to shutdown the background activity is to
-    // issue the poison pill.
-    private static final LinkedBlockingQueue<ByteBuffer> RELEASABLE_BUFFERS = new LinkedBlockingQueue<>();
-    private static final ByteBuffer RELEASABLE_BUFFER_POISON_PILL = ByteBuffer.allocate(1);
+    // Un-maps the mmaped buffers that workers are done with, in background.
+    // It is never closed: whatever is still pending at exit is left to the kernel.
+    private static final Unmapper UNMAPPER = new Unmapper();
 
     // ========================= MEATY GRITTY PARTS: PARSE AND AGGREGATE =========================
 
@@ -303,7 +300,7 @@ public class CalculateAverage_shipilev {
         @Override
         public void onCompletion(CountedCompleter<?> caller) {
             if (DIRECT_UNMMAPS && (mappedBuf != null)) {
-                RELEASABLE_BUFFERS.offer(mappedBuf);
+                UNMAPPER.release(mappedBuf);
             }
         }
 
@@ -447,8 +444,11 @@ public class CalculateAverage_shipilev {
     // a given mmap slice, while there is still other work to do. This allows
     // us to unmap slices on the go.
     public static final class RootTask extends CountedCompleter<Void> {
-        public RootTask(CountedCompleter<Void> parent) {
+        private final Path file;
+
+        public RootTask(CountedCompleter<Void> parent, Path file) {
             super(parent);
+            this.file = file;
         }
 
         @Override
@@ -465,7 +465,7 @@ public class CalculateAverage_shipilev {
 
         private void internalCompute() throws Exception {
             ByteBuffer buf = ByteBuffer.allocateDirect(MAX_LINE_LENGTH);
-            FileChannel fc = FileChannel.open(Path.of(FILE), StandardOpenOption.READ);
+            FileChannel fc = FileChannel.open(file, StandardOpenOption.READ);
 
             long start = 0;
             long size = fc.size();
@@ -502,23 +502,14 @@ public class CalculateAverage_shipilev {
             // FJP API: We have finished, try to complete the whole task tree.
             propagateCompletion();
         }
-
-        @Override
-        public void onCompletion(CountedCompleter<?> caller) {
-            try {
-                RELEASABLE_BUFFERS.put(RELEASABLE_BUFFER_POISON_PILL);
-            }
-            catch (Exception e) {
-                throw new IllegalStateException(e);
-            }
-        }
     }
 
     // ========================= Invocation =========================
 
     public static void main(String[] args) throws Exception {
         // This little line carries the whole world
-        new RootTask(null).fork();
+        RootTask root = new RootTask(null, Path.of(FILE));
+        root.fork();
 
         // While the root task is working, prepare what we need for the
         // end of the run. Go and try to report something to prepare the
@@ -530,21 +521,62 @@ public class CalculateAverage_shipilev {
         report(map, rows, sb);
         sb.setLength(0);
 
-        // Nothing else is left to do preparation-wise. Now see if we can clean up
-        // buffers that tasks do not need anymore. The root task would communicate
-        // that it is done by giving us a poison pill.
-        ByteBuffer buf;
-        while ((buf = RELEASABLE_BUFFERS.take()) != RELEASABLE_BUFFER_POISON_PILL) {
-            DirectUnmaps.invokeCleaner(buf);
-        }
+        awaitAndMerge(root, map);
+
+        // ...and truly report them
+        System.out.println(report(map, rows, sb));
+    }
+
+    private static void awaitAndMerge(RootTask root, MeasurementsMap map) {
+        // Nothing else is left to do preparation-wise. The buffers that tasks do
+        // not need anymore are un-mapped by UNMAPPER meanwhile, so just wait for
+        // the whole task tree to complete.
+        root.join();
 
         // All done. Merge results from thread-local maps...
         for (MeasurementsMap m : ALL_MAPS) {
             map.merge(m);
         }
+    }
 
-        // ...and truly report them
-        System.out.println(report(map, rows, sb));
+    // The engine runs in its own pool rather than the common one, so that the thread-local
+    // maps of a run are those of the pool's threads and can be dropped with it.
+    public static final class Engine implements AggregationEngine {
+
+        @Override
+        public String name() {
+            return "shipilev";
+        }
+
+        @Override
+        public Set<Capability> capabilities() {
+            return EnumSet.of(Capability.THREAD_COUNT);
+        }
+
+        @Override
+        public AggregateSnapshot aggregate(Path file, int threads) throws InterruptedException {
+            // One run at a time, as the queues are static.
+            synchronized (ALL_MAPS) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    RootTask root = new RootTask(null, file);
+                    pool.execute(root);
+                    MeasurementsMap map = new MeasurementsMap();
+                    awaitAndMerge(root, map);
+                    AggregateSnapshot.Builder builder = AggregateSnapshot.builder();
+                    for (Bucket bucket : map.buckets) {
+                        if (bucket != null) {
+                            builder.add(new String(bucket.name), bucket.min, bucket.max, bucket.sum, bucket.count);
+                        }
+                    }
+                    return builder.build();
+                }
+                finally {
+                    pool.shutdown();
+                    ALL_MAPS.clear();
+                }
+            }
+        }
     }
 
     private static String report(MeasurementsMap map, Row[] rows, StringBuilder sb) {
@@ -593,57 +625,4 @@ public class CalculateAverage_shipilev {
             sb.append(max);
         }
     }
-
-    // ========================= Utils =========================
-
-    // Tries to figure out if calling Cleaner directly on the DirectByteBuffer
-    // is possible. If this fails, we still go on.
-    public static class DirectUnmaps {
-        private static final Method METHOD_GET_CLEANER;
-        private static final Method METHOD_CLEANER_CLEAN;
-
-        static Method getCleaner() {
-            try {
-                ByteBuffer dbb = ByteBuffer.allocateDirect(1);
-                Method m = dbb.getClass().getMethod("cleaner");
-                m.setAccessible(true);
-                return m;
-            }
-            catch (NoSuchMethodException | InaccessibleObjectException e) {
-                return null;
-            }
-        }
-
-        static Method getCleanerClean(Method methodGetCleaner) {
-            try {
-                ByteBuffer dbb = ByteBuffer.allocateDirect(1);
-                Object cleaner = methodGetCleaner.invoke(dbb);
-                Method m = cleaner.getClass().getMethod("clean");
-                m.setAccessible(true);
-                m.invoke(cleaner);
-                return m;
-            }
-            catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException | InaccessibleObjectException e) {
-                return null;
-            }
-        }
-
-        static {
-            METHOD_GET_CLEANER = getCleaner();
-            METHOD_CLEANER_CLEAN = (METHOD_GET_CLEANER != null) ? getCleanerClean(METHOD_GET_CLEANER) : null;
-        }
-
-        public static void invokeCleaner(ByteBuffer bb) {
-            if (METHOD_GET_CLEANER == null || METHOD_CLEANER_CLEAN == null) {
-                return;
-            }
-            try {
-                METHOD_CLEANER_CLEAN.invoke(METHOD_GET_CLEANER.invoke(bb));
-            }
-            catch (InvocationTargetException | IllegalAccessException e) {
-                throw new IllegalStateException("Cannot happen at this point", e);
-            }
-        }
-    }
-
 }
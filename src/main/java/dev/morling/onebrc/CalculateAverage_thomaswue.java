@@ -15,16 +15,31 @@
  */
 package dev.morling.onebrc;
 
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Simple solution that memory maps the input file, then splits it into one segment per available core and uses
@@ -34,20 +49,56 @@ import java.util.stream.IntStream;
  * Perf stats:
  *     25,286,227,376      cpu_core/cycles/
  *     26,833,723,225      cpu_atom/cycles/
+ * <p>
+ * With {@code --incremental <state file>}, the aggregates are saved together with the offset up to
+ * which the file was processed and a checksum of the bytes before that offset. If the file was only
+ * appended to since, the next run maps just the new bytes and merges them into the saved state.
+ * {@code --snapshot <file>} additionally writes the result as an {@link AggregateSnapshot}.
+ * <p>
+ * With {@code --stdin}, the input is read from standard input instead, e.g. from a pipe. A reader
+ * thread fills a ring of off-heap blocks and hands them to the parser threads cut at line
+ * boundaries, and the parsers run the same scanner on them as on the mapped file.
+ * {@code --compressed <file>} reads a {@link BlockCompressedFile} instead, each thread inflating
+ * the next block into its own buffer and parsing it from there; a measurements file that is block
+ * compressed is detected by its magic and read the same way.
+ * {@code --storage <profile>} reads the file (or standard input) with read() through a
+ * {@link SimulatedStorage} profile, e.g. {@code network}, to see how the reader keeps up with
+ * slow storage.
+ * <p>
+ * With {@code --percentiles}, each station also gets a histogram with one bucket per tenth of a
+ * degree, and the output becomes min/mean/max/p50/p95/p99, the percentiles being exact.
+ * <p>
+ * With {@code --dictionary <file>}, the stations of a dictionary such as data/weather_stations.csv
+ * get a {@link StationPerfectHash} table of their own, looked up without probing before the general
+ * table, which then only holds the stations missing from the dictionary.
+ * <p>
+ * With the environment variable {@code TABLE_METRICS=true}, each thread prints {@link TableMetrics}
+ * of its station table to stderr. The switch is a static final, so the JIT drops the counting
+ * code when it is off.
  */
 public class CalculateAverage_thomaswue {
     private static final String FILE = "./measurements.txt";
+    // As reported in EngineEvents
+    private static final String ENGINE = "thomaswue";
+    private static final boolean METRICS = Boolean.parseBoolean(System.getenv("TABLE_METRICS"));
     private static final int MIN_TEMP = -999;
     private static final int MAX_TEMP = 999;
+    private static final int HISTOGRAM_BUCKETS = MAX_TEMP - MIN_TEMP + 1;
 
     // Holding the current result for a single city.
-    private static class Result {
+    static class Result {
         long lastNameLong, secondLastNameLong;
         long min, max;
         long sum;
-        int count;
+        long count;
         long[] name;
         String nameAsString;
+        // One bucket per tenth of a degree. Counts are kept modulo 256 to keep the per-thread tables
+        // small; the carries go to histogramHigh, allocated once a bucket first overflows.
+        byte[] histogram;
+        int[] histogramHigh;
+        // Hash of the name, kept to re-insert the result when its table grows.
+        long hash;
 
         private Result() {
             this.min = MAX_TEMP;
@@ -55,7 +106,36 @@ public class CalculateAverage_thomaswue {
         }
 
         public String toString() {
-            return round(((double) min) / 10.0) + "/" + round((((double) sum) / 10.0) / count) + "/" + round(((double) max) / 10.0);
+            String result = round(((double) min) / 10.0) + "/" + round((((double) sum) / 10.0) / count) + "/" + round(((double) max) / 10.0);
+            if (histogram != null) {
+                result += "/" + percentile(0.5) + "/" + percentile(0.95) + "/" + percentile(0.99);
+            }
+            return result;
+        }
+
+        // Exact nearest-rank percentile.
+        double percentile(double p) {
+            long rank = Math.max(1, (long) Math.ceil(p * count));
+            long seen = 0;
+            for (int bucket = 0; bucket < HISTOGRAM_BUCKETS; bucket++) {
+                seen += bucketCount(bucket);
+                if (seen >= rank) {
+                    return (bucket + MIN_TEMP) / 10.0;
+                }
+            }
+            return max / 10.0;
+        }
+
+        private long bucketCount(int bucket) {
+            long low = histogram[bucket] & 0xFF;
+            return histogramHigh == null ? low : ((long) histogramHigh[bucket] << 8) + low;
+        }
+
+        private void carry(int bucket) {
+            if (histogramHigh == null) {
+                histogramHigh = new int[HISTOGRAM_BUCKETS];
+            }
+            histogramHigh[bucket]++;
         }
 
         private static double round(double value) {
@@ -72,6 +152,19 @@ public class CalculateAverage_thomaswue {
             }
             sum += other.sum;
             count += other.count;
+            if (other.histogram != null) {
+                if (histogram == null) {
+                    histogram = new byte[HISTOGRAM_BUCKETS];
+                }
+                if (histogramHigh == null) {
+                    histogramHigh = new int[HISTOGRAM_BUCKETS];
+                }
+                for (int bucket = 0; bucket < HISTOGRAM_BUCKETS; bucket++) {
+                    long total = bucketCount(bucket) + other.bucketCount(bucket);
+                    histogram[bucket] = (byte) total;
+                    histogramHigh[bucket] = Math.toIntExact(total >>> 8);
+                }
+            }
         }
 
         public String calcName() {
@@ -89,22 +182,116 @@ public class CalculateAverage_thomaswue {
     }
 
     public static void main(String[] args) throws IOException, InterruptedException {
-        if (args.length == 0 || !("--worker".equals(args[0]))) {
-            spawnWorker();
+        if (Unmapper.spawnWorker(args)) {
             return;
         }
-        // Calculate input segments.
-        int numberOfWorkers = Runtime.getRuntime().availableProcessors();
-        final AtomicLong cursor = new AtomicLong();
-        final long fileEnd;
-        final long fileStart;
+        List<String> arguments = Arrays.asList(args);
+        int stateArgument = arguments.indexOf("--incremental");
+        Path statePath = stateArgument >= 0 ? Path.of(args[stateArgument + 1]) : null;
+        int snapshotArgument = arguments.indexOf("--snapshot");
+        Path snapshotPath = snapshotArgument >= 0 ? Path.of(args[snapshotArgument + 1]) : null;
+        boolean histograms = arguments.contains("--percentiles");
+        if (histograms && (statePath != null || snapshotPath != null)) {
+            throw new IllegalArgumentException("--percentiles can't be combined with --incremental or --snapshot, which only keep min/mean/max");
+        }
+        int adviceArgument = arguments.indexOf("--madvise");
+        InputMapping.Advice advice = adviceArgument >= 0 ? InputMapping.Advice.parse(args[adviceArgument + 1]) : null;
+        int prefaultArgument = arguments.indexOf("--prefault");
+        int prefaultChunks = prefaultArgument >= 0 ? Integer.parseInt(args[prefaultArgument + 1]) : 0;
+        InputMapping.PageFaults pageFaults = arguments.contains("--page-faults") ? InputMapping.PageFaults.current() : null;
+        int dictionaryArgument = arguments.indexOf("--dictionary");
+        Dictionary dictionary = dictionaryArgument >= 0 ? Dictionary.load(Path.of(args[dictionaryArgument + 1])) : null;
+        boolean stdin = arguments.contains("--stdin");
+        int storageArgument = arguments.indexOf("--storage");
+        SimulatedStorage.Throttle throttle = storageArgument >= 0 ? new SimulatedStorage.Throttle(SimulatedStorage.Profile.parse(args[storageArgument + 1])) : null;
+        int compressedArgument = arguments.indexOf("--compressed");
+        Path compressedPath = compressedArgument >= 0 ? Path.of(args[compressedArgument + 1]) : null;
+        if (compressedPath == null && !stdin && BlockCompressedFile.isBlockCompressed(Path.of(FILE))) {
+            compressedPath = Path.of(FILE);
+        }
+        if ((stdin || compressedPath != null || throttle != null) && statePath != null) {
+            throw new IllegalArgumentException("--incremental requires an uncompressed file, it can't be combined with --stdin, --compressed or --storage");
+        }
+        if (compressedPath != null && throttle != null) {
+            throw new IllegalArgumentException("--storage can't be combined with --compressed");
+        }
+
+        IncrementalState previousState = null;
+        IncrementalState nextState = null;
+        TreeMap<String, Result> result;
+
+        if (stdin || throttle != null) {
+            ReadableByteChannel input = stdin ? new FileInputStream(FileDescriptor.in).getChannel() : FileChannel.open(Path.of(FILE), StandardOpenOption.READ);
+            try (var channel = throttle != null ? new SimulatedStorage.ThrottledChannel(input, throttle) : input) {
+                result = processStream(channel, Runtime.getRuntime().availableProcessors(), histograms, dictionary);
+            }
+            if (throttle != null) {
+                System.err.println(throttle);
+            }
+        }
+        else if (compressedPath != null) {
+            result = processCompressed(compressedPath, Runtime.getRuntime().availableProcessors(), histograms, dictionary);
+        }
+        else {
+            try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+                long fileSize = fileChannel.size();
+                long offset = 0;
+                long end = fileSize;
+                if (statePath != null) {
+                    previousState = IncrementalState.load(statePath, fileChannel);
+                    offset = previousState == null ? 0 : previousState.offset;
+                    // A partially appended last line is left for the next run.
+                    end = IncrementalState.lastLineEnd(fileChannel, offset, fileSize);
+                    nextState = new IncrementalState(end, IncrementalState.tailChecksum(fileChannel, end));
+                }
+                result = process(fileChannel, offset, end, Runtime.getRuntime().availableProcessors(), histograms, dictionary, advice, prefaultChunks);
+            }
+        }
+        if (pageFaults != null) {
+            System.err.println(InputMapping.PageFaults.current().since(pageFaults));
+        }
 
-        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
-            long fileSize = fileChannel.size();
-            fileStart = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize, java.lang.foreign.Arena.global()).address();
-            cursor.set(fileStart);
-            fileEnd = fileStart + fileSize;
+        if (previousState != null) {
+            previousState.addTo(result);
         }
+        if (nextState != null || snapshotPath != null) {
+            AggregateSnapshot snapshot = toSnapshot(result);
+            if (nextState != null) {
+                nextState.snapshot = snapshot;
+                nextState.save(statePath);
+            }
+            if (snapshotPath != null) {
+                snapshot.write(snapshotPath);
+            }
+        }
+
+        // Final output.
+        System.out.println(result);
+        System.out.close();
+    }
+
+    // Parses the lines in [offset, end) of the file, which must be at line boundaries.
+    static TreeMap<String, Result> process(FileChannel fileChannel, long offset, long end, int numberOfWorkers, boolean histograms)
+            throws IOException, InterruptedException {
+        return process(fileChannel, offset, end, numberOfWorkers, histograms, null, null, 0);
+    }
+
+    // Also looks up the stations of the dictionary, if any, in a table of their own, passes the advice,
+    // if any, to madvise() for the whole mapping, and with prefaultChunks > 0, faults in the mapping
+    // up to that many segments ahead of the parsers on a separate thread.
+    static TreeMap<String, Result> process(FileChannel fileChannel, long offset, long end, int numberOfWorkers, boolean histograms,
+                                           Dictionary dictionary, InputMapping.Advice advice, int prefaultChunks)
+            throws IOException, InterruptedException {
+        // Map a few more bytes when available, as the scanner reads a long at a time.
+        long mappedEnd = Math.min(end + 128, fileChannel.size());
+        MemorySegment mapping = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, mappedEnd - offset, Arena.global());
+        InputMapping.advise(mapping, 0, mapping.byteSize(), advice);
+        final long fileStart = mapping.address();
+        final long fileEnd = fileStart + end - offset;
+        final AtomicLong cursor = new AtomicLong(fileStart);
+        InputMapping.Prefaulter prefaulter = prefaultChunks > 0
+                ? new InputMapping.Prefaulter(mapping, SEGMENT_SIZE, prefaultChunks, () -> cursor.get() - fileStart, null)
+                : null;
 
         // Parallel processing of segments.
         Thread[] threads = new Thread[numberOfWorkers];
@@ -112,15 +299,160 @@ public class CalculateAverage_thomaswue {
         for (int i = 0; i < threads.length; ++i) {
             final int index = i;
             threads[i] = new Thread(() -> {
-                Result[] resultArray = parseLoop(cursor, fileEnd, fileStart);
-                List<Result> results = new ArrayList<>(500);
-                for (Result r : resultArray) {
-                    if (r != null) {
-                        r.calcName();
-                        results.add(r);
+                allResults[index] = collectResults(parseLoop(cursor, fileEnd, fileStart, new ResultTable(histograms, dictionary)));
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (prefaulter != null) {
+            prefaulter.close();
+        }
+        return accumulateResults(allResults);
+    }
+
+    // Blocks handed from the reader thread to the parsers, cut after the last complete line.
+    private static final int STREAM_BLOCK_SIZE = 4 * 1024 * 1024;
+    // The scanner reads a long at a time, so leave room after the last line of a block.
+    private static final int STREAM_BLOCK_PADDING = 256;
+    private static final int STREAM_BLOCKS_PER_WORKER = 2;
+
+    record StreamBlock(MemorySegment buffer, long length) {
+    }
+
+    private static final StreamBlock END_OF_STREAM = new StreamBlock(MemorySegment.NULL, -1);
+
+    // Parses a stream that can't be mapped, e.g. a pipe.
+    static TreeMap<String, Result> processStream(ReadableByteChannel channel, int numberOfWorkers, boolean histograms, Dictionary dictionary)
+            throws IOException, InterruptedException {
+        int blocks = numberOfWorkers * STREAM_BLOCKS_PER_WORKER + 1;
+        BlockingQueue<MemorySegment> free = new ArrayBlockingQueue<>(blocks);
+        BlockingQueue<StreamBlock> filled = new ArrayBlockingQueue<>(blocks + numberOfWorkers);
+
+        try (Arena arena = Arena.ofShared()) {
+            for (int i = 0; i < blocks; i++) {
+                free.add(arena.allocate(STREAM_BLOCK_SIZE + STREAM_BLOCK_PADDING, 64));
+            }
+
+            Thread[] threads = new Thread[numberOfWorkers];
+            List<Result>[] allResults = new List[numberOfWorkers];
+            for (int i = 0; i < threads.length; ++i) {
+                final int index = i;
+                threads[i] = new Thread(() -> {
+                    ResultTable resultTable = new ResultTable(histograms, dictionary);
+                    try {
+                        StreamBlock block;
+                        while ((block = filled.take()) != END_OF_STREAM) {
+                            long start = block.buffer().address();
+                            parseLoop(new AtomicLong(start), start + block.length(), start, resultTable);
+                            free.put(block.buffer());
+                        }
                     }
+                    catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    allResults[index] = collectResults(resultTable);
+                });
+                threads[i].start();
+            }
+
+            try {
+                readBlocks(channel, free, filled);
+            }
+            finally {
+                for (int i = 0; i < threads.length; ++i) {
+                    filled.put(END_OF_STREAM);
+                }
+                for (Thread thread : threads) {
+                    thread.join();
                 }
-                allResults[index] = results;
+            }
+            return accumulateResults(allResults);
+        }
+    }
+
+    // The calling thread is the reader: it fills free blocks and passes on the complete lines in them. The
+    // partial line at the end of a block is carried over to the start of the next one.
+    private static void readBlocks(ReadableByteChannel channel, BlockingQueue<MemorySegment> free, BlockingQueue<StreamBlock> filled)
+            throws IOException, InterruptedException {
+        byte[] carry = new byte[STREAM_BLOCK_PADDING];
+        int carryLength = 0;
+        boolean endOfStream = false;
+        while (!endOfStream) {
+            MemorySegment buffer = free.take();
+            MemorySegment.copy(carry, 0, buffer, ValueLayout.JAVA_BYTE, 0, carryLength);
+            ByteBuffer target = buffer.asSlice(0, STREAM_BLOCK_SIZE).asByteBuffer().position(carryLength);
+            while (target.hasRemaining()) {
+                if (channel.read(target) < 0) {
+                    endOfStream = true;
+                    break;
+                }
+            }
+
+            long length = target.position();
+            if (endOfStream) {
+                // Terminate a last line without newline, there is room for it in the padding.
+                if (length > 0 && buffer.get(ValueLayout.JAVA_BYTE, length - 1) != '\n') {
+                    buffer.set(ValueLayout.JAVA_BYTE, length++, (byte) '\n');
+                }
+                carryLength = 0;
+            }
+            else {
+                long lineEnd = length;
+                while (lineEnd > 0 && buffer.get(ValueLayout.JAVA_BYTE, lineEnd - 1) != '\n') {
+                    lineEnd--;
+                }
+                carryLength = (int) (length - lineEnd);
+                if (carryLength > carry.length) {
+                    throw new IOException("Line longer than " + carry.length + " bytes");
+                }
+                MemorySegment.copy(buffer, ValueLayout.JAVA_BYTE, lineEnd, carry, 0, carryLength);
+                length = lineEnd;
+            }
+
+            if (length > 0) {
+                filled.put(new StreamBlock(buffer, length));
+            }
+            else {
+                free.put(buffer);
+            }
+        }
+    }
+
+    // Parses a block-compressed file, the threads taking turns to inflate the next block.
+    static TreeMap<String, Result> processCompressed(Path path, int numberOfWorkers, boolean histograms, Dictionary dictionary)
+            throws IOException, InterruptedException {
+        BlockCompressedFile file = BlockCompressedFile.map(path);
+        AtomicInteger nextBlock = new AtomicInteger();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        Thread[] threads = new Thread[numberOfWorkers];
+        List<Result>[] allResults = new List[numberOfWorkers];
+        for (int i = 0; i < threads.length; ++i) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                // Inflater needs a buffer that isn't from a closeable shared arena.
+                MemorySegment buffer = Arena.ofAuto().allocate(file.blockSize() + STREAM_BLOCK_PADDING, 64);
+                ResultTable resultTable = new ResultTable(histograms, dictionary);
+                Inflater inflater = new Inflater(true);
+                try {
+                    int block;
+                    while (failure.get() == null && (block = nextBlock.getAndIncrement()) < file.blockCount()) {
+                        long start = buffer.address();
+                        int length = file.inflate(block, buffer, inflater);
+                        parseLoop(new AtomicLong(start), start + length, start, resultTable);
+                    }
+                }
+                catch (DataFormatException | RuntimeException e) {
+                    // Reported by the joining thread, the other workers stop at their next block.
+                    failure.compareAndSet(null, e);
+                }
+                finally {
+                    inflater.end();
+                }
+                allResults[index] = collectResults(resultTable);
             });
             threads[i].start();
         }
@@ -128,24 +460,243 @@ public class CalculateAverage_thomaswue {
         for (Thread thread : threads) {
             thread.join();
         }
+        if (failure.get() != null) {
+            throw new IOException("Corrupt block-compressed file " + path + ": " + failure.get().getMessage(), failure.get());
+        }
+        return accumulateResults(allResults);
+    }
 
-        // Final output.
-        System.out.println(accumulateResults(allResults));
-        System.out.close();
+    static List<Result> collectResults(ResultTable table) {
+        if (METRICS) {
+            System.err.println(Thread.currentThread().getName() + ": " + table.metrics.report(table));
+        }
+        List<Result> results = new ArrayList<>(Math.max(500, table.size));
+        for (Result r : table.slots) {
+            if (r != null) {
+                r.calcName();
+                results.add(r);
+            }
+        }
+        if (table.dictionarySlots != null) {
+            for (Result r : table.dictionarySlots) {
+                if (r != null && r.count > 0) {
+                    r.calcName();
+                    results.add(r);
+                }
+            }
+        }
+        return results;
+    }
+
+    // Open-addressing table of the results of one thread. It starts out sized for the 10K stations of
+    // the rules, sparse enough for most lookups to hit on the first probe, and doubles whenever it is
+    // half full, so that inputs with millions of distinct names don't overflow it.
+    static final class ResultTable {
+        private static final int INITIAL_CAPACITY = 1 << 17;
+
+        // Whether new results get a histogram, as with --percentiles.
+        final boolean histograms;
+        Result[] slots = new Result[INITIAL_CAPACITY];
+        int size;
+        final TableMetrics metrics = METRICS ? new TableMetrics() : null;
+        // The stations of the dictionary, if any, at their slot in its perfect hash.
+        final Dictionary dictionary;
+        final Result[] dictionarySlots;
+
+        ResultTable(boolean histograms) {
+            this(histograms, null);
+        }
+
+        ResultTable(boolean histograms, Dictionary dictionary) {
+            this.histograms = histograms;
+            this.dictionary = dictionary;
+            this.dictionarySlots = dictionary != null ? dictionary.newEntries(histograms) : null;
+        }
+
+        // The entry of the dictionary at the slot of the hash, which may be of another name.
+        Result dictionaryEntry(long hash) {
+            return dictionarySlots[dictionary.perfectHash.index(hash)];
+        }
+
+        private void add(int index, Result r) {
+            slots[index] = r;
+            if (++size > slots.length >>> 1) {
+                grow();
+            }
+        }
+
+        private void grow() {
+            if (METRICS) {
+                metrics.grows++;
+            }
+            Result[] grown = new Result[slots.length << 1];
+            for (Result r : slots) {
+                if (r != null) {
+                    int index = hashToIndex(r.hash, grown);
+                    while (grown[index] != null) {
+                        index = (index + 31) & (grown.length - 1);
+                    }
+                    grown[index] = r;
+                }
+            }
+            slots = grown;
+        }
+
+        void clear() {
+            Arrays.fill(slots, null);
+            size = 0;
+        }
+    }
+
+    // Stations known ahead of time, one per line of a file like data/weather_stations.csv, the name
+    // being what comes before the ';'. Lines starting with '#' are skipped. Names sharing their hash
+    // with an earlier one are left to the general table, as the perfect hash needs distinct keys.
+    static final class Dictionary {
+        private static final double LOAD_FACTOR = 0.9;
+        private static final int BUCKET_SIZE = 4;
+
+        final StationPerfectHash perfectHash;
+        // The name of each slot as in Result.name, null for free slots.
+        private final long[][] names;
+
+        private Dictionary(StationPerfectHash perfectHash, long[][] names) {
+            this.perfectHash = perfectHash;
+            this.names = names;
+        }
+
+        static Dictionary load(Path file) throws IOException {
+            byte[] bytes = Files.readAllBytes(file);
+            List<long[]> names = new ArrayList<>();
+            Set<Long> hashes = new HashSet<>();
+            for (int lineStart = 0, lineEnd; lineStart < bytes.length; lineStart = lineEnd + 1) {
+                lineEnd = lineStart;
+                int nameEnd = -1;
+                while (lineEnd < bytes.length && bytes[lineEnd] != '\n') {
+                    if (bytes[lineEnd] == ';' && nameEnd < 0) {
+                        nameEnd = lineEnd;
+                    }
+                    lineEnd++;
+                }
+                if (nameEnd < 0) {
+                    nameEnd = lineEnd > lineStart && bytes[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+                }
+                if (nameEnd > lineStart && bytes[lineStart] != '#') {
+                    long[] name = toName(Arrays.copyOfRange(bytes, lineStart, nameEnd));
+                    if (hashes.add(hash(name))) {
+                        names.add(name);
+                    }
+                }
+            }
+            long[] keys = new long[names.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = hash(names.get(i));
+            }
+            StationPerfectHash perfectHash = StationPerfectHash.build(keys, LOAD_FACTOR, BUCKET_SIZE);
+            long[][] slots = new long[perfectHash.slots()][];
+            for (int i = 0; i < keys.length; i++) {
+                slots[perfectHash.index(keys[i])] = names.get(i);
+            }
+            return new Dictionary(perfectHash, slots);
+        }
+
+        // The name as newEntry() stores it: the bytes and the delimiter, a long at a time.
+        private static long[] toName(byte[] bytes) {
+            long[] name = new long[bytes.length / Long.BYTES + 1];
+            for (int i = 0; i <= bytes.length; i++) {
+                long b = i < bytes.length ? bytes[i] & 0xFF : ';';
+                name[i / Long.BYTES] |= b << ((i % Long.BYTES) << 3);
+            }
+            return name;
+        }
+
+        private static long lastNameLong(long[] name) {
+            long last = name[name.length - 1];
+            // The delimiter goes to the highest byte, as with mask().
+            return last << ((Long.numberOfLeadingZeros(last) >>> 3) << 3);
+        }
+
+        // The hash findResult() computes for the name.
+        private static long hash(long[] name) {
+            long hash = lastNameLong(name);
+            for (int i = 0; i < name.length - 1; i++) {
+                hash ^= name[i];
+            }
+            return hash;
+        }
+
+        // A new entry of each station for the table of one thread, at its slot.
+        Result[] newEntries(boolean histograms) {
+            Result[] entries = new Result[names.length];
+            for (int i = 0; i < names.length; i++) {
+                long[] name = names[i];
+                if (name != null) {
+                    Result r = new Result();
+                    r.name = name;
+                    r.hash = hash(name);
+                    r.lastNameLong = lastNameLong(name);
+                    r.secondLastNameLong = name.length > 1 ? name[name.length - 2] : 0;
+                    if (histograms) {
+                        r.histogram = new byte[HISTOGRAM_BUCKETS];
+                    }
+                    entries[i] = r;
+                }
+            }
+            return entries;
+        }
     }
 
-    private static void spawnWorker() throws IOException {
-        ProcessHandle.Info info = ProcessHandle.current().info();
-        ArrayList<String> workerCommand = new ArrayList<>();
-        info.command().ifPresent(workerCommand::add);
-        info.arguments().ifPresent(args -> workerCommand.addAll(Arrays.asList(args)));
-        workerCommand.add("--worker");
-        new ProcessBuilder().command(workerCommand).inheritIO().redirectOutput(ProcessBuilder.Redirect.PIPE)
-                .start().getInputStream().transferTo(System.out);
+    // How well the hash spreads the station names of one thread over its table. A lookup takes one
+    // probe if the first slot it looks at holds its station or is empty, and one more per re-probe.
+    // Full-name compares are the lookups' word-by-word checks against a slot of the same name length.
+    static final class TableMetrics {
+        // Lookups by probes taken, the last bucket also counting all longer ones.
+        private static final int PROBE_BUCKETS = 16;
+
+        final long[] probes = new long[PROBE_BUCKETS + 1];
+        long nameCompares;
+        long newEntries;
+        int grows;
+
+        void lookup(int probeCount) {
+            probes[Math.min(probeCount, PROBE_BUCKETS)]++;
+        }
+
+        String report(ResultTable table) {
+            long lookups = 0;
+            long totalProbes = 0;
+            for (int i = 1; i <= PROBE_BUCKETS; i++) {
+                lookups += probes[i];
+                totalProbes += i * probes[i];
+            }
+            StringBuilder histogram = new StringBuilder();
+            for (int i = 1; i <= PROBE_BUCKETS; i++) {
+                if (probes[i] != 0) {
+                    histogram.append(histogram.isEmpty() ? "" : ", ").append(i).append(i == PROBE_BUCKETS ? "+" : "").append(": ").append(probes[i]);
+                }
+            }
+            return String.format(
+                    "%,d stations in %,d slots (load factor %.4f, %d grows), %,d lookups, %.4f probes per lookup {%s}, %,d full-name compares, %,d new entries",
+                    table.size, table.slots.length, (double) table.size / table.slots.length, grows, lookups, lookups == 0 ? 0.0 : (double) totalProbes / lookups,
+                    histogram, nameCompares, newEntries);
+        }
     }
 
     // Accumulate results sequentially for simplicity.
-    private static TreeMap<String, Result> accumulateResults(List<Result>[] allResults) {
+    static TreeMap<String, Result> accumulateResults(List<Result>[] allResults) {
+        if (!EngineEvents.enabled()) {
+            return merge(allResults);
+        }
+        EngineEvents.Merge event = new EngineEvents.Merge();
+        event.begin();
+        TreeMap<String, Result> result = merge(allResults);
+        event.engine = ENGINE;
+        event.tables = allResults.length;
+        event.stations = result.size();
+        event.commit();
+        return result;
+    }
+
+    private static TreeMap<String, Result> merge(List<Result>[] allResults) {
         TreeMap<String, Result> result = new TreeMap<>();
         for (List<Result> resultArr : allResults) {
             for (Result r : resultArr) {
@@ -159,8 +710,133 @@ public class CalculateAverage_thomaswue {
         return result;
     }
 
-    private static Result findResult(long initialWord, long initialPos, Scanner scanner, Result[] results) {
+    static AggregateSnapshot toSnapshot(Map<String, Result> results) {
+        AggregateSnapshot.Builder builder = AggregateSnapshot.builder();
+        for (Result r : results.values()) {
+            builder.add(r.calcName(), r.min, r.max, r.sum, r.count);
+        }
+        return builder.build();
+    }
+
+    public static final class Engine implements AggregationEngine {
+
+        @Override
+        public String name() {
+            return "thomaswue";
+        }
+
+        @Override
+        public Set<Capability> capabilities() {
+            return EnumSet.of(Capability.STREAMING, Capability.THREAD_COUNT, Capability.HIGH_CARDINALITY);
+        }
+
+        @Override
+        public AggregateSnapshot aggregate(Path file, int threads) throws IOException, InterruptedException {
+            try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return toSnapshot(process(fileChannel, 0, fileChannel.size(), threads, false));
+            }
+        }
+
+        @Override
+        public AggregateSnapshot aggregate(ReadableByteChannel channel, int threads) throws IOException, InterruptedException {
+            return toSnapshot(processStream(channel, threads, false, null));
+        }
+    }
+
+    // Aggregates of a previous run, covering the file up to offset.
+    private static class IncrementalState {
+        private static final long MAGIC = 0x31425243494e4352L; // "1BRCINCR"
+        private static final int HEADER_SIZE = 24;
+        private static final int TAIL_CHECKSUM_BYTES = 4096;
 
+        final long offset;
+        final long checksum;
+        AggregateSnapshot snapshot;
+
+        private IncrementalState(long offset, long checksum) {
+            this.offset = offset;
+            this.checksum = checksum;
+        }
+
+        // Returns null if there is no state or the file was modified other than by appending to it.
+        static IncrementalState load(Path path, FileChannel fileChannel) throws IOException {
+            if (!Files.exists(path)) {
+                return null;
+            }
+            try (var stateChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (header.hasRemaining() && stateChannel.read(header) >= 0) {
+                }
+                if (header.position() < HEADER_SIZE || header.getLong(0) != MAGIC) {
+                    throw new IOException("Not an incremental state file: " + path);
+                }
+                IncrementalState state = new IncrementalState(header.getLong(8), header.getLong(16));
+                if (state.offset > fileChannel.size() || state.checksum != tailChecksum(fileChannel, state.offset)) {
+                    System.err.println("Input file changed before offset " + state.offset + ", processing it from the start.");
+                    return null;
+                }
+                state.snapshot = AggregateSnapshot.map(stateChannel, HEADER_SIZE);
+                return state;
+            }
+        }
+
+        void save(Path path) throws IOException {
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (var out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(MAGIC).putLong(offset).putLong(checksum).flip();
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+                snapshot.writeTo(out);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        void addTo(TreeMap<String, Result> target) {
+            for (int i = 0; i < snapshot.size(); i++) {
+                Result r = new Result();
+                r.nameAsString = snapshot.name(i);
+                r.min = snapshot.min(i);
+                r.max = snapshot.max(i);
+                r.sum = snapshot.sum(i);
+                r.count = snapshot.count(i);
+                Result current = target.putIfAbsent(r.nameAsString, r);
+                if (current != null) {
+                    current.add(r);
+                }
+            }
+        }
+
+        // CRC32 of the bytes right before offset, used to detect that the processed part was rewritten.
+        static long tailChecksum(FileChannel fileChannel, long offset) throws IOException {
+            int length = (int) Math.min(offset, TAIL_CHECKSUM_BYTES);
+            ByteBuffer tail = ByteBuffer.allocate(length);
+            while (tail.hasRemaining()) {
+                if (fileChannel.read(tail, offset - length + tail.position()) < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(tail.flip());
+            return crc.getValue();
+        }
+
+        // End of the last complete line in [offset, fileSize), or offset if there is none.
+        static long lastLineEnd(FileChannel fileChannel, long offset, long fileSize) throws IOException {
+            int length = (int) Math.min(fileSize - offset, 256);
+            ByteBuffer tail = ByteBuffer.allocate(length);
+            fileChannel.read(tail, fileSize - length);
+            for (int i = tail.position() - 1; i >= 0; i--) {
+                if (tail.get(i) == '\n') {
+                    return fileSize - length + i + 1;
+                }
+            }
+            return offset;
+        }
+    }
+
+    private static Result findResult(long initialWord, long initialPos, Scanner scanner, ResultTable table) {
+        Result[] results = table.slots;
         Result existingResult;
         long word = initialWord;
         long pos = initialPos;
@@ -174,10 +850,13 @@ public class CalculateAverage_thomaswue {
             word = mask(word, pos);
             hash = word;
 
-            int index = hashToIndex(hash, results);
-            existingResult = results[index];
+            existingResult = table.dictionary != null ? table.dictionaryEntry(hash) : results[hashToIndex(hash, results)];
 
-            if (existingResult != null && existingResult.lastNameLong == word) {
+            // Longer names have a secondLastNameLong, only the names of one word don't.
+            if (existingResult != null && existingResult.lastNameLong == word && existingResult.secondLastNameLong == 0) {
+                if (METRICS) {
+                    table.metrics.lookup(1);
+                }
                 return existingResult;
             }
             else {
@@ -195,10 +874,13 @@ public class CalculateAverage_thomaswue {
                 scanner.add(pos);
                 word = mask(word, pos);
                 hash ^= word;
-                int index = hashToIndex(hash, results);
-                existingResult = results[index];
+                existingResult = table.dictionary != null ? table.dictionaryEntry(hash) : results[hashToIndex(hash, results)];
 
-                if (existingResult != null && existingResult.lastNameLong == word && existingResult.secondLastNameLong == prevWord) {
+                if (existingResult != null && existingResult.lastNameLong == word && existingResult.secondLastNameLong == prevWord
+                        && existingResult.name.length == 2) {
+                    if (METRICS) {
+                        table.metrics.lookup(1);
+                    }
                     return existingResult;
                 }
                 else {
@@ -229,16 +911,39 @@ public class CalculateAverage_thomaswue {
         // Save length of name for later.
         int nameLength = (int) (scanner.pos() - nameAddress);
 
+        // Names of up to two words were already looked up in the dictionary above.
+        if (table.dictionary != null && nameLength >= 2 * Long.BYTES) {
+            existingResult = table.dictionaryEntry(hash);
+            if (existingResult != null && existingResult.hash == hash && hasName(existingResult, nameAddress, nameLength, scanner)) {
+                if (METRICS) {
+                    table.metrics.lookup(1);
+                }
+                return existingResult;
+            }
+        }
+
         // Final calculation for index into hash table.
         int tableIndex = hashToIndex(hash, results);
+        int probes = 0;
         outer: while (true) {
+            if (METRICS) {
+                probes++;
+            }
             existingResult = results[tableIndex];
             if (existingResult == null) {
-                existingResult = newEntry(results, nameAddress, tableIndex, nameLength, scanner);
+                // May grow the table, but the new entry ends the probing below.
+                existingResult = newEntry(table, tableIndex, hash, nameAddress, nameLength, scanner);
             }
-            // Check for collision.
+            // Check for collision. Names of different lengths can share their first and last words.
             int i = 0;
             long[] name = existingResult.name;
+            if (name.length != nameLength / Long.BYTES + 1) {
+                tableIndex = (tableIndex + 31) & (results.length - 1);
+                continue;
+            }
+            if (METRICS) {
+                table.metrics.nameCompares++;
+            }
             for (; i < nameLength + 1 - 8; i += 8) {
                 if (scanner.getLongAt(i, name) != scanner.getLongAt(nameAddress + i)) {
                     tableIndex = (tableIndex + 31) & (results.length - 1);
@@ -255,9 +960,28 @@ public class CalculateAverage_thomaswue {
                 tableIndex = (tableIndex + 31) & (results.length - 1);
             }
         }
+        if (METRICS) {
+            table.metrics.lookup(probes);
+        }
         return existingResult;
     }
 
+    // The collision check of findResult(), for a single result.
+    private static boolean hasName(Result r, long nameAddress, int nameLength, Scanner scanner) {
+        long[] name = r.name;
+        if (name.length != nameLength / Long.BYTES + 1) {
+            return false;
+        }
+        int i = 0;
+        for (; i < nameLength + 1 - 8; i += 8) {
+            if (scanner.getLongAt(i, name) != scanner.getLongAt(nameAddress + i)) {
+                return false;
+            }
+        }
+        int remainingShift = (64 - (nameLength + 1 - i) << 3);
+        return (r.lastNameLong ^ (scanner.getLongAt(nameAddress + i) << remainingShift)) == 0;
+    }
+
     private static long nextNL(long prev) {
         while (true) {
             long currentWord = Scanner.UNSAFE.getLong(prev);
@@ -273,80 +997,112 @@ public class CalculateAverage_thomaswue {
         return prev;
     }
 
-    private static final int SEGMENT_SIZE = 1024 * 1024 * 2;
+    static final int SEGMENT_SIZE = 1024 * 1024 * 2;
 
     // Main parse loop.
-    private static Result[] parseLoop(AtomicLong counter, long fileEnd, long fileStart) {
-        Result[] results = new Result[1 << 17];
-
+    // Parses into the given table, which a thread can reuse to accumulate several inputs.
+    static ResultTable parseLoop(AtomicLong counter, long fileEnd, long fileStart, ResultTable results) {
+        if (EngineEvents.enabled()) {
+            return parseLoopWithEvents(counter, fileEnd, fileStart, results);
+        }
         while (true) {
             long current = counter.addAndGet(SEGMENT_SIZE) - SEGMENT_SIZE;
 
             if (current >= fileEnd) {
                 return results;
             }
+            parseSegment(current, fileEnd, fileStart, results);
+        }
+    }
 
-            long segmentEnd = nextNL(Math.min(fileEnd - 1, current + SEGMENT_SIZE));
-            long segmentStart;
-            if (current == fileStart) {
-                segmentStart = current;
-            }
-            else {
-                segmentStart = nextNL(current) + 1;
+    // Same as parseLoop(), emitting EngineEvents for each segment.
+    private static ResultTable parseLoopWithEvents(AtomicLong counter, long fileEnd, long fileStart, ResultTable results) {
+        while (true) {
+            EngineEvents.ShardClaim claim = new EngineEvents.ShardClaim();
+            claim.begin();
+            long current = counter.addAndGet(SEGMENT_SIZE) - SEGMENT_SIZE;
+
+            if (current >= fileEnd) {
+                return results;
             }
+            claim.engine = ENGINE;
+            claim.offset = current - fileStart;
+            claim.length = Math.min(SEGMENT_SIZE, fileEnd - current);
+            claim.commit();
 
-            long dist = (segmentEnd - segmentStart) / 3;
-            long midPoint1 = nextNL(segmentStart + dist);
-            long midPoint2 = nextNL(segmentStart + dist + dist);
+            EngineEvents.ShardFinish finish = new EngineEvents.ShardFinish();
+            finish.begin();
+            parseSegment(current, fileEnd, fileStart, results);
+            finish.engine = ENGINE;
+            finish.offset = claim.offset;
+            finish.length = claim.length;
+            finish.commit();
+        }
+    }
 
-            Scanner scanner1 = new Scanner(segmentStart, midPoint1);
-            Scanner scanner2 = new Scanner(midPoint1 + 1, midPoint2);
-            Scanner scanner3 = new Scanner(midPoint2 + 1, segmentEnd);
-            while (true) {
-                if (!scanner1.hasNext()) {
-                    break;
-                }
-                if (!scanner2.hasNext()) {
-                    break;
-                }
-                if (!scanner3.hasNext()) {
-                    break;
-                }
+    // Parses the segment at current. Its first partial line belongs to the previous segment, unless
+    // current is the file start, and the line crossing its end is parsed with it.
+    static void parseSegment(long current, long fileEnd, long fileStart, ResultTable results) {
+        long segmentEnd = nextNL(Math.min(fileEnd - 1, current + SEGMENT_SIZE));
+        long segmentStart;
+        if (current == fileStart) {
+            segmentStart = current;
+        }
+        else {
+            segmentStart = nextNL(current) + 1;
+        }
 
-                long word1 = scanner1.getLong();
-                long word2 = scanner2.getLong();
-                long word3 = scanner3.getLong();
-                long pos1 = findDelimiter(word1);
-                long pos2 = findDelimiter(word2);
-                long pos3 = findDelimiter(word3);
-                Result existingResult1 = findResult(word1, pos1, scanner1, results);
-                Result existingResult2 = findResult(word2, pos2, scanner2, results);
-                Result existingResult3 = findResult(word3, pos3, scanner3, results);
-                long number1 = scanNumber(scanner1);
-                long number2 = scanNumber(scanner2);
-                long number3 = scanNumber(scanner3);
-                record(existingResult1, number1);
-                record(existingResult2, number2);
-                record(existingResult3, number3);
-            }
+        long dist = (segmentEnd - segmentStart) / 3;
+        long midPoint1 = nextNL(segmentStart + dist);
+        long midPoint2 = nextNL(segmentStart + dist + dist);
 
-            while (scanner1.hasNext()) {
-                long word = scanner1.getLong();
-                long pos = findDelimiter(word);
-                record(findResult(word, pos, scanner1, results), scanNumber(scanner1));
+        Scanner scanner1 = new Scanner(segmentStart, midPoint1);
+        Scanner scanner2 = new Scanner(midPoint1 + 1, midPoint2);
+        Scanner scanner3 = new Scanner(midPoint2 + 1, segmentEnd);
+        while (true) {
+            if (!scanner1.hasNext()) {
+                break;
             }
-
-            while (scanner2.hasNext()) {
-                long word = scanner2.getLong();
-                long pos = findDelimiter(word);
-                record(findResult(word, pos, scanner2, results), scanNumber(scanner2));
+            if (!scanner2.hasNext()) {
+                break;
             }
-
-            while (scanner3.hasNext()) {
-                long word = scanner3.getLong();
-                long pos = findDelimiter(word);
-                record(findResult(word, pos, scanner3, results), scanNumber(scanner3));
+            if (!scanner3.hasNext()) {
+                break;
             }
+
+            long word1 = scanner1.getLong();
+            long word2 = scanner2.getLong();
+            long word3 = scanner3.getLong();
+            long pos1 = findDelimiter(word1);
+            long pos2 = findDelimiter(word2);
+            long pos3 = findDelimiter(word3);
+            Result existingResult1 = findResult(word1, pos1, scanner1, results);
+            Result existingResult2 = findResult(word2, pos2, scanner2, results);
+            Result existingResult3 = findResult(word3, pos3, scanner3, results);
+            long number1 = scanNumber(scanner1);
+            long number2 = scanNumber(scanner2);
+            long number3 = scanNumber(scanner3);
+            record(existingResult1, number1);
+            record(existingResult2, number2);
+            record(existingResult3, number3);
+        }
+
+        while (scanner1.hasNext()) {
+            long word = scanner1.getLong();
+            long pos = findDelimiter(word);
+            record(findResult(word, pos, scanner1, results), scanNumber(scanner1));
+        }
+
+        while (scanner2.hasNext()) {
+            long word = scanner2.getLong();
+            long pos = findDelimiter(word);
+            record(findResult(word, pos, scanner2, results), scanNumber(scanner2));
+        }
+
+        while (scanner3.hasNext()) {
+            long word = scanner3.getLong();
+            long pos = findDelimiter(word);
+            record(findResult(word, pos, scanner3, results), scanNumber(scanner3));
         }
     }
 
@@ -368,11 +1124,25 @@ public class CalculateAverage_thomaswue {
         }
         existingResult.sum += number;
         existingResult.count++;
+        byte[] histogram = existingResult.histogram;
+        if (histogram != null) {
+            int bucket = (int) number - MIN_TEMP;
+            if (++histogram[bucket] == 0) {
+                existingResult.carry(bucket);
+            }
+        }
     }
 
     private static int hashToIndex(long hash, Result[] results) {
-        long hashAsInt = hash ^ (hash >>> 37) ^ (hash >>> 17);
-        return (int) (hashAsInt & (results.length - 1));
+        return mix(hash) & (results.length - 1);
+    }
+
+    // Station names get by with cheaper mixing, but generated IDs that share most of their bytes
+    // cluster badly in the table unless all bits of the hash are mixed into the index.
+    private static int mix(long hash) {
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (hash ^ (hash >>> 33));
     }
 
     private static long mask(long word, long pos) {
@@ -406,9 +1176,12 @@ public class CalculateAverage_thomaswue {
         return tmp;
     }
 
-    private static Result newEntry(Result[] results, long nameAddress, int hash, int nameLength, Scanner scanner) {
+    private static Result newEntry(ResultTable table, int index, long hash, long nameAddress, int nameLength, Scanner scanner) {
+        if (METRICS) {
+            table.metrics.newEntries++;
+        }
         Result r = new Result();
-        results[hash] = r;
+        r.hash = hash;
         long[] name = new long[(nameLength / Long.BYTES) + 1];
         int pos = 0;
         int i = 0;
@@ -425,9 +1198,28 @@ public class CalculateAverage_thomaswue {
         r.lastNameLong = lastWord;
         name[pos] = lastWord >> remainingShift;
         r.name = name;
+        if (table.histograms) {
+            r.histogram = new byte[HISTOGRAM_BUCKETS];
+        }
+        table.add(index, r);
+
+        if (EngineEvents.enabled()) {
+            emitNewStation(r, table);
+        }
         return r;
     }
 
+    private static void emitNewStation(Result r, ResultTable table) {
+        EngineEvents.NewStation event = new EngineEvents.NewStation();
+        if (event.shouldCommit()) {
+            event.engine = ENGINE;
+            event.station = r.calcName();
+            event.stations = table.size;
+            event.capacity = table.slots.length;
+            event.commit();
+        }
+    }
+
     private static class Scanner {
 
         private static final sun.misc.Unsafe UNSAFE = initUnsafe();
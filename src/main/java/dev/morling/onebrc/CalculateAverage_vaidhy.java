@@ -158,6 +158,18 @@ public class CalculateAverage_vaidhy<I, T> {
         long length();
 
         long address();
+
+        /**
+         * Blocks until [offset, offset + length) has arrived from storage. A mapped file is
+         * faulted in by the parsers themselves, so there is nothing to wait for.
+         */
+        default void await(long offset, long length) {
+        }
+
+        /** How much to await at a time, or 0 if nothing needs to be awaited. */
+        default long requestSize() {
+            return 0;
+        }
     }
 
     CalculateAverage_vaidhy(FileService fileService,
@@ -169,8 +181,15 @@ public class CalculateAverage_vaidhy<I, T> {
     }
 
     static class LineStream {
+        // The last line of a chunk may end this far after the chunk.
+        private static final long MAX_LINE_LENGTH = 128;
+
+        private final FileService fileService;
+        private final long fileStart;
         private final long fileEnd;
         private final long chunkEnd;
+        private final long awaitEnd;
+        private long readyEnd;
 
         private long position;
         private int hash;
@@ -178,14 +197,22 @@ public class CalculateAverage_vaidhy<I, T> {
         byte[] b = new byte[4];
 
         public LineStream(FileService fileService, long offset, long chunkSize) {
-            long fileStart = fileService.address();
+            this.fileService = fileService;
+            this.fileStart = fileService.address();
             this.fileEnd = fileStart + fileService.length();
             this.chunkEnd = fileStart + offset + chunkSize;
+            this.awaitEnd = Math.min(chunkEnd + MAX_LINE_LENGTH, fileEnd);
             this.position = fileStart + offset;
+            this.readyEnd = fileService.requestSize() == 0 ? Long.MAX_VALUE : position;
             this.hash = 0;
         }
 
         public boolean hasNext() {
+            while (position >= readyEnd && readyEnd < awaitEnd) {
+                long end = Math.min(readyEnd + fileService.requestSize(), awaitEnd);
+                fileService.await(readyEnd - fileStart, end - readyEnd);
+                readyEnd = end;
+            }
             return position <= chunkEnd && position < fileEnd;
         }
 
@@ -333,6 +360,37 @@ public class CalculateAverage_vaidhy<I, T> {
         }
     }
 
+    // A mapped file whose bytes are only parsed once they would have arrived from slow storage.
+    static class ThrottledFileService implements FileService {
+        private final FileService delegate;
+        private final SimulatedStorage.Throttle throttle;
+
+        ThrottledFileService(FileService delegate, SimulatedStorage.Throttle throttle) {
+            this.delegate = delegate;
+            this.throttle = throttle;
+        }
+
+        @Override
+        public long length() {
+            return delegate.length();
+        }
+
+        @Override
+        public long address() {
+            return delegate.address();
+        }
+
+        @Override
+        public void await(long offset, long length) {
+            throttle.await(offset, length);
+        }
+
+        @Override
+        public long requestSize() {
+            return throttle.profile().requestSize();
+        }
+    }
+
     private static class ChunkProcessorImpl implements MapReduce<PrimitiveHashMap> {
 
         // 1 << 14 > 10,000 so it works
@@ -362,9 +420,16 @@ public class CalculateAverage_vaidhy<I, T> {
 
     public static void main(String[] args) throws IOException {
         DiskFileService diskFileService = new DiskFileService(FILE);
+        FileService fileService = diskFileService;
+        SimulatedStorage.Throttle throttle = null;
+        // --storage <profile> simulates slow storage, see SimulatedStorage.Profile.
+        if (args.length == 2 && args[0].equals("--storage")) {
+            throttle = new SimulatedStorage.Throttle(SimulatedStorage.Profile.parse(args[1]));
+            fileService = new ThrottledFileService(diskFileService, throttle);
+        }
 
         CalculateAverage_vaidhy<PrimitiveHashMap, Map<String, IntSummaryStatistics>> calculateAverageVaidhy = new CalculateAverage_vaidhy<>(
-                diskFileService,
+                fileService,
                 ChunkProcessorImpl::new,
                 CalculateAverage_vaidhy::combineOutputs);
 
@@ -379,6 +444,9 @@ public class CalculateAverage_vaidhy<I, T> {
 
         Map<String, String> outputStr = toPrintMap(output);
         System.out.println(outputStr);
+        if (throttle != null) {
+            System.err.println(throttle);
+        }
     }
 
     private static Map<String, String> toPrintMap(Map<String, IntSummaryStatistics> output) {
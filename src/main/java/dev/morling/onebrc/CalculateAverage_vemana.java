@@ -17,19 +17,31 @@ package dev.morling.onebrc;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.lang.reflect.Method;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SplittableRandom;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -40,6 +52,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * This submission focuses on exploiting the non-SIMD parallelism that is inherent in OOO
@@ -62,7 +75,7 @@ import java.util.stream.Collectors;
  * was conclusive that unmap() executes serially and the 400ms was being spent purely unmapping.
  * Now, the challenge is to both (1) unmap a MappedByteBuffer (no such methods exposed) from code
  * rather than via exit() syscall and (2) do it in parallel without causing lock contention. For 1,
- * use Reflection and (2) is an interesting math problem with a provably optimal solution.
+ * use {@link Unmapper#unmap} and (2) is an interesting math problem with a provably optimal solution.
  * Parallelism in munmap() is achieved by using a fast lock that prevents two threads from
  * simultaneously cleaning (i.e. munmap()) the ByteBuffer.
  *
@@ -86,6 +99,17 @@ import java.util.stream.Collectors;
  * effectively a per-thread queue while processing big-chunks. The small-chunk phase uses an
  * AtomicLong to coordinate chunk allocation across threads.
  *
+ * <p>[NUMA] With numa=true, the shard queue is split per NUMA node (see {@code
+ * NumaLazyShardQueue}): each node gets a contiguous region of the file and a group of threads
+ * pinned to its CPUs, and the per-node results are merged before the global merge. This keeps the
+ * page cache pages a thread touches, and the hashtables it merges, on its own node.
+ *
+ * <p>[Auto-tuning] The tunables below were picked by hand for one 7950X. With autotune=true,
+ * {@code AutoTuner} searches them on a sample of the input by successive halving and saves the
+ * best configuration for this host (CPU model, core count and cache sizes) under tuningDir
+ * (default ~/.1brc). Later runs on the same host load it automatically; explicit arguments still
+ * override single values.
+ *
  * <p>[Chunk processing] Chunk processing is typical. Process line by line. Find a hash function
  * (polynomial hash fns are slow, but will work fine), hash the city name, resolve conflicts using
  * linear probing and then accumulate the temperature into the appropriate hash slot. The key
@@ -157,6 +181,9 @@ import java.util.stream.Collectors;
  */
 public class CalculateAverage_vemana {
 
+    // As reported in EngineEvents
+    private static final String ENGINE = "vemana";
+
     public static void main(String[] args) throws Exception {
         Tracing.recordAppStart();
         Runtime.getRuntime()
@@ -166,82 +193,72 @@ public class CalculateAverage_vemana {
                                     Tracing.recordEvent("In Shutdown hook");
                                 }));
 
-        // First process in large chunks without coordination among threads
-        // Use chunkSizeBits for the large-chunk size
-        int chunkSizeBits = 20;
-
-        // For the last commonChunkFraction fraction of total work, use smaller chunk sizes
-        double commonChunkFraction = 0.03;
+        int nThreads = -1;
 
-        // Use commonChunkSizeBits for the small-chunk size
-        int commonChunkSizeBits = 18;
+        String inputFile = "measurements.txt";
 
-        // Size of the hashtable (attempt to fit in L3)
-        int hashtableSizeBits = 14;
+        boolean fakeAdvance = false;
 
-        int minReservedBytesAtFileTail = 9;
+        boolean numa = false;
 
-        int nThreads = -1;
+        boolean autotune = false;
 
-        String inputFile = "measurements.txt";
+        Path tuningDir = TuningProfile.DEFAULT_DIR;
 
-        double munmapFraction = 0.03;
+        long tuneSampleBytes = 256L << 20;
 
-        boolean fakeAdvance = false;
+        int tuneCandidates = 16;
 
+        List<String> overrides = new ArrayList<>();
         for (String arg : args) {
             String key = arg.substring(0, arg.indexOf('=')).trim();
             String value = arg.substring(key.length() + 1).trim();
             switch (key) {
-                case "chunkSizeBits":
-                    chunkSizeBits = Integer.parseInt(value);
-                    break;
-                case "commonChunkFraction":
-                    commonChunkFraction = Double.parseDouble(value);
-                    break;
-                case "commonChunkSizeBits":
-                    commonChunkSizeBits = Integer.parseInt(value);
-                    break;
-                case "hashtableSizeBits":
-                    hashtableSizeBits = Integer.parseInt(value);
-                    break;
                 case "inputfile":
                     inputFile = value;
                     break;
-                case "munmapFraction":
-                    munmapFraction = Double.parseDouble(value);
-                    break;
                 case "fakeAdvance":
                     fakeAdvance = Boolean.parseBoolean(value);
                     break;
                 case "nThreads":
                     nThreads = Integer.parseInt(value);
                     break;
+                case "numa":
+                    numa = Boolean.parseBoolean(value);
+                    break;
+                case "autotune":
+                    autotune = Boolean.parseBoolean(value);
+                    break;
+                case "tuningDir":
+                    tuningDir = Path.of(value);
+                    break;
+                case "tuneSampleMb":
+                    tuneSampleBytes = Long.parseLong(value) << 20;
+                    break;
+                case "tuneCandidates":
+                    tuneCandidates = Integer.parseInt(value);
+                    break;
                 default:
-                    throw new IllegalArgumentException("Unknown argument: " + arg);
+                    // Checked by Config.with()
+                    overrides.add(arg);
             }
         }
+        int threads = nThreads < 0 ? Runtime.getRuntime().availableProcessors() : nThreads;
 
-        // System.err.println(STR."""
-        // Using the following parameters:
-        // - chunkSizeBits = \{chunkSizeBits}
-        // - commonChunkFraction = \{commonChunkFraction}
-        // - commonChunkSizeBits = \{commonChunkSizeBits}
-        // - hashtableSizeBits = \{hashtableSizeBits}
-        // """);
+        Config config;
+        if (autotune) {
+            config = new AutoTuner(Path.of(inputFile), threads, tuneSampleBytes, tuneCandidates).tune();
+            Path saved = TuningProfile.save(tuningDir, config);
+            System.err.println("Saved " + config + " to " + saved);
+        }
+        else {
+            config = TuningProfile.load(tuningDir);
+        }
+        for (String override : overrides) {
+            config = config.with(override);
+        }
 
-        System.out.println(
-                new Runner(
-                        Path.of(inputFile),
-                        nThreads,
-                        chunkSizeBits,
-                        commonChunkFraction,
-                        commonChunkSizeBits,
-                        hashtableSizeBits,
-                        minReservedBytesAtFileTail,
-                        munmapFraction,
-                        fakeAdvance)
-                                .getSummaryStatistics());
+        System.out.println(new Runner(Path.of(inputFile), threads, config, fakeAdvance, numa).getSummaryStatistics());
 
         Tracing.recordEvent("Final result printed");
     }
@@ -356,13 +373,7 @@ public class CalculateAverage_vemana {
     }
 
         private void close(MappedByteBuffer buffer) {
-            Method cleanerMethod = Reflection.findMethodNamed(buffer, "cleaner");
-            cleanerMethod.setAccessible(true);
-            Object cleaner = Reflection.invoke(buffer, cleanerMethod);
-
-            Method cleanMethod = Reflection.findMethodNamed(cleaner, "clean");
-            cleanMethod.setAccessible(true);
-            Reflection.invoke(cleaner, cleanMethod);
+            Unmapper.unmap(buffer);
         }
 
         private long nextNewLine(long pos) {
@@ -408,24 +419,479 @@ public class CalculateAverage_vemana {
         ByteRange take(int shardIdx);
     }
 
-    static final class Reflection {
+    /**
+     * Splits the file into one contiguous region per NUMA node, sized by the node's share of threads,
+     * and runs a {@code SerialLazyShardQueue} per region. Threads are grouped per node and pinned to
+     * that node's CPUs on their first take(), so that (with first-touch placement of the page cache)
+     * they mostly read memory local to their node.
+     */
+    public static class NumaLazyShardQueue implements LazyShardQueue {
+
+        private final int[] localShardIdx;
+        private final int[] nodeOfShard;
+        private final SerialLazyShardQueue[] nodeQueues;
+        private final boolean[] pinned;
+        private final NumaTopology topology;
+
+        public NumaLazyShardQueue(
+                                  NumaTopology topology,
+                                  long chunkSize,
+                                  Path filePath,
+                                  int shards,
+                                  double commonChunkFraction,
+                                  int commonChunkSizeBits,
+                                  int fileTailReservedBytes,
+                                  double munmapFraction,
+                                  boolean fakeAdvance)
+                throws IOException {
+            this.topology = topology;
+            int nodes = Math.min(topology.nodes(), shards);
+            int[] shardsPerNode = topology.distribute(shards, nodes);
+
+            this.nodeOfShard = new int[shards];
+            this.localShardIdx = new int[shards];
+            this.pinned = new boolean[shards << 4];
+            this.nodeQueues = new SerialLazyShardQueue[nodes];
+            long fileSize = Files.size(filePath);
+            for (int node = 0, firstShard = 0; node < nodes; node++) {
+                int lastShard = firstShard + shardsPerNode[node];
+                for (int i = firstShard; i < lastShard; i++) {
+                    nodeOfShard[i] = node;
+                    localShardIdx[i] = i - firstShard;
+                }
+                long regionStart = fileSize * firstShard / shards;
+                long regionEnd = node == nodes - 1 ? Long.MAX_VALUE : fileSize * lastShard / shards;
+                nodeQueues[node] = new SerialLazyShardQueue(
+                        chunkSize,
+                        filePath,
+                        regionStart,
+                        regionEnd,
+                        shardsPerNode[node],
+                        commonChunkFraction,
+                        commonChunkSizeBits,
+                        fileTailReservedBytes,
+                        munmapFraction,
+                        fakeAdvance);
+                firstShard = lastShard;
+            }
+        }
+
+        @Override
+        public void close(String closerId, int shardIdx) {
+            nodeQueues[nodeOfShard[shardIdx]].close(closerId, localShardIdx[shardIdx]);
+        }
+
+        @Override
+        public Optional<ByteRange> fileTailEndWork(int idx) {
+            // On small files every region is clamped to the file size, so only ask the last node.
+            int node = nodeOfShard[idx];
+            return node == nodeQueues.length - 1
+                    ? nodeQueues[node].fileTailEndWork(localShardIdx[idx])
+                    : Optional.empty();
+        }
 
-        static Method findMethodNamed(Object object, String name, Class... paramTypes) {
+        public List<List<Future<AggregateResult>>> groupByNode(List<Future<AggregateResult>> results) {
+            List<List<Future<AggregateResult>>> groups = new ArrayList<>();
+            for (int i = 0; i < nodeQueues.length; i++) {
+                groups.add(new ArrayList<>());
+            }
+            for (int i = 0; i < results.size(); i++) {
+                groups.get(nodeOfShard[i]).add(results.get(i));
+            }
+            return groups;
+        }
+
+        @Override
+        public ByteRange take(int shardIdx) {
+            int node = nodeOfShard[shardIdx];
+            if (!pinned[shardIdx << 4]) {
+                pinned[shardIdx << 4] = true;
+                topology.pinCurrentThread(node);
+            }
+            return nodeQueues[node].take(localShardIdx[shardIdx]);
+        }
+    }
+
+    /** NUMA nodes and their CPUs, as reported by /sys/devices/system/node. */
+    public record NumaTopology(List<int[]> nodeCpus) {
+
+        private static final Path NODES = Path.of("/sys/devices/system/node");
+
+        /** Reads the topology; a host without NUMA information is treated as a single node. */
+        public static NumaTopology read() {
+            List<int[]> nodeCpus = new ArrayList<>();
+            try (Stream<Path> nodes = Files.list(NODES)) {
+                for (Path node : nodes.filter(path -> path.getFileName().toString().matches("node\\d+"))
+                        .sorted(Comparator.comparingInt(path -> Integer.parseInt(path.getFileName().toString().substring(4))))
+                        .toList()) {
+                    int[] cpus = parseCpuList(Files.readString(node.resolve("cpulist")).trim());
+                    if (cpus.length > 0) {
+                        nodeCpus.add(cpus);
+                    }
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                nodeCpus.clear();
+            }
+            if (nodeCpus.isEmpty()) {
+                nodeCpus.add(new int[0]);
+            }
+            return new NumaTopology(nodeCpus);
+        }
+
+        // Parses the kernel's cpulist format, e.g. "0-15,32-47".
+        static int[] parseCpuList(String cpuList) {
+            if (cpuList.isEmpty()) {
+                return new int[0];
+            }
+            return Arrays.stream(cpuList.split(","))
+                    .flatMapToInt(
+                            range -> {
+                                int dash = range.indexOf('-');
+                                if (dash < 0) {
+                                    return java.util.stream.IntStream.of(Integer.parseInt(range));
+                                }
+                                return java.util.stream.IntStream.rangeClosed(
+                                        Integer.parseInt(range.substring(0, dash)),
+                                        Integer.parseInt(range.substring(dash + 1)));
+                            })
+                    .toArray();
+        }
+
+        public int nodes() {
+            return nodeCpus.size();
+        }
+
+        /** Splits threads over the first n nodes in proportion to their CPU counts. */
+        int[] distribute(int threads, int n) {
+            int[] result = new int[n];
+            long totalCpus = 0;
+            for (int i = 0; i < n; i++) {
+                totalCpus += Math.max(1, nodeCpus.get(i).length);
+            }
+            int assigned = 0;
+            for (int i = 0; i < n; i++) {
+                result[i] = Math.max(1, (int) (threads * Math.max(1, nodeCpus.get(i).length) / totalCpus));
+                assigned += result[i];
+            }
+            // Hand out (or take back) rounding leftovers, starting with the first node.
+            for (int i = 0; assigned != threads; i = (i + 1) % n) {
+                if (assigned < threads) {
+                    result[i]++;
+                    assigned++;
+                }
+                else if (result[i] > 1) {
+                    result[i]--;
+                    assigned--;
+                }
+            }
+            return result;
+        }
+
+        /** Best effort: restricts the calling thread to the node's CPUs via sched_setaffinity(2). */
+        void pinCurrentThread(int node) {
+            int[] cpus = nodeCpus.get(node);
+            if (cpus.length == 0 || Affinity.SCHED_SETAFFINITY == null) {
+                return;
+            }
+            int maxCpu = Arrays.stream(cpus).max().getAsInt();
+            long maskBytes = ((maxCpu / 64) + 1) * (long) Long.BYTES;
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment mask = arena.allocate(maskBytes, Long.BYTES);
+                for (int cpu : cpus) {
+                    long word = mask.getAtIndex(ValueLayout.JAVA_LONG, cpu / 64);
+                    mask.setAtIndex(ValueLayout.JAVA_LONG, cpu / 64, word | (1L << (cpu % 64)));
+                }
+                int ignored = (int) Affinity.SCHED_SETAFFINITY.invokeExact(0, maskBytes, mask);
+            }
+            catch (Throwable e) {
+                // Not pinned; the kernel's NUMA balancing may still migrate the thread.
+            }
+        }
+    }
+
+    static final class Affinity {
+
+        static final MethodHandle SCHED_SETAFFINITY = lookup();
+
+        private static MethodHandle lookup() {
             try {
-                return object.getClass().getMethod(name, paramTypes);
+                Linker linker = Linker.nativeLinker();
+                return linker.defaultLookup()
+                        .find("sched_setaffinity")
+                        .map(
+                                symbol -> linker.downcallHandle(
+                                        symbol,
+                                        FunctionDescriptor.of(
+                                                ValueLayout.JAVA_INT,
+                                                ValueLayout.JAVA_INT,
+                                                ValueLayout.JAVA_LONG,
+                                                ValueLayout.ADDRESS)))
+                        .orElse(null);
             }
-            catch (NoSuchMethodException e) {
-                throw new RuntimeException(e);
+            catch (RuntimeException e) {
+                return null;
             }
         }
 
-        static Object invoke(Object receiver, Method method, Object... params) {
+        private Affinity() {
+        }
+    }
+
+    public static final class Engine implements AggregationEngine {
+
+        @Override
+        public String name() {
+            return "vemana";
+        }
+
+        @Override
+        public Set<Capability> capabilities() {
+            return EnumSet.of(Capability.THREAD_COUNT);
+        }
+
+        @Override
+        public AggregateSnapshot aggregate(Path file, int threads) throws IOException, InterruptedException {
+            Runner runner = new Runner(file, threads, TuningProfile.load(TuningProfile.DEFAULT_DIR), false, false);
+            AggregateResult result;
             try {
-                return method.invoke(receiver, params);
+                result = runner.getSummaryStatistics();
+            }
+            catch (IOException | InterruptedException | RuntimeException e) {
+                throw e;
             }
             catch (Exception e) {
-                throw new RuntimeException(e);
+                throw new IOException(e);
+            }
+            AggregateSnapshot.Builder builder = AggregateSnapshot.builder();
+            for (Entry<String, Stat> entry : result.tempStats().entrySet()) {
+                Stat stat = entry.getValue();
+                builder.add(entry.getKey(), stat.min, stat.max, stat.sum, stat.count);
+            }
+            return builder.build();
+        }
+    }
+
+    /** The tunables of {@link Runner}, as passed on the command line. */
+    public record Config(
+                         int chunkSizeBits,
+                         double commonChunkFraction,
+                         int commonChunkSizeBits,
+                         int hashtableSizeBits,
+                         int minReservedBytesAtFileTail,
+                         double munmapFraction) {
+
+        // Hand-tuned on a 7950X
+        public static final Config DEFAULT = new Config(20, 0.03, 18, 14, 9, 0.03);
+
+        public static final List<String> KEYS = List.of(
+                "chunkSizeBits", "commonChunkFraction", "commonChunkSizeBits", "hashtableSizeBits", "minReservedBytesAtFileTail", "munmapFraction");
+
+        /** This configuration with one value replaced, given as key=value. */
+        public Config with(String arg) {
+            String key = arg.substring(0, arg.indexOf('=')).trim();
+            String value = arg.substring(key.length() + 1).trim();
+            return switch (key) {
+                case "chunkSizeBits" -> new Config(Integer.parseInt(value), commonChunkFraction, commonChunkSizeBits, hashtableSizeBits,
+                        minReservedBytesAtFileTail, munmapFraction);
+                case "commonChunkFraction" -> new Config(chunkSizeBits, Double.parseDouble(value), commonChunkSizeBits, hashtableSizeBits,
+                        minReservedBytesAtFileTail, munmapFraction);
+                case "commonChunkSizeBits" -> new Config(chunkSizeBits, commonChunkFraction, Integer.parseInt(value), hashtableSizeBits,
+                        minReservedBytesAtFileTail, munmapFraction);
+                case "hashtableSizeBits" -> new Config(chunkSizeBits, commonChunkFraction, commonChunkSizeBits, Integer.parseInt(value),
+                        minReservedBytesAtFileTail, munmapFraction);
+                case "minReservedBytesAtFileTail" -> new Config(chunkSizeBits, commonChunkFraction, commonChunkSizeBits, hashtableSizeBits,
+                        Integer.parseInt(value), munmapFraction);
+                case "munmapFraction" -> new Config(chunkSizeBits, commonChunkFraction, commonChunkSizeBits, hashtableSizeBits,
+                        minReservedBytesAtFileTail, Double.parseDouble(value));
+                default -> throw new IllegalArgumentException("Unknown argument: " + arg);
+            };
+        }
+
+        /** The values as key=value arguments, separated by spaces. */
+        @Override
+        public String toString() {
+            return "chunkSizeBits=%d commonChunkFraction=%s commonChunkSizeBits=%d hashtableSizeBits=%d minReservedBytesAtFileTail=%d munmapFraction=%s"
+                    .formatted(chunkSizeBits, commonChunkFraction, commonChunkSizeBits, hashtableSizeBits, minReservedBytesAtFileTail, munmapFraction);
+        }
+    }
+
+    /**
+     * The best configuration found by {@link AutoTuner} for a host, stored as a properties file per
+     * host. A host is identified by its CPU model, core count and cache sizes, so that a profile
+     * tuned on one machine type is not picked up on another sharing the home directory.
+     */
+    static final class TuningProfile {
+
+        static final Path DEFAULT_DIR = Path.of(System.getProperty("user.home"), ".1brc");
+
+        private static final String HOST_KEY = "host";
+
+        /** The configuration saved for this host, or {@link Config#DEFAULT} if there is none. */
+        static Config load(Path dir) {
+            Path file = file(dir);
+            if (!Files.isRegularFile(file)) {
+                return Config.DEFAULT;
+            }
+            Properties properties = new Properties();
+            try (var reader = Files.newBufferedReader(file)) {
+                properties.load(reader);
+            }
+            catch (IOException e) {
+                return Config.DEFAULT;
+            }
+            if (!host().equals(properties.getProperty(HOST_KEY))) {
+                return Config.DEFAULT;
             }
+            Config config = Config.DEFAULT;
+            for (String key : Config.KEYS) {
+                String value = properties.getProperty(key);
+                if (value != null) {
+                    config = config.with(key + "=" + value);
+                }
+            }
+            return config;
+        }
+
+        static Path save(Path dir, Config config) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty(HOST_KEY, host());
+            for (String arg : config.toString().split(" ")) {
+                properties.setProperty(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+            Files.createDirectories(dir);
+            Path file = file(dir);
+            try (var writer = Files.newBufferedWriter(file)) {
+                properties.store(writer, "Tuned by CalculateAverage_vemana autotune=true");
+            }
+            return file;
+        }
+
+        private static Path file(Path dir) {
+            return dir.resolve("vemana-%08x.properties".formatted(host().hashCode()));
+        }
+
+        // e.g. "AMD Ryzen 9 7950X 16-Core Processor/32 cores/L1d 32K, L1i 32K, L2 1024K, L3 32768K"
+        static String host() {
+            String model = "unknown";
+            try (Stream<String> lines = Files.lines(Path.of("/proc/cpuinfo"))) {
+                model = lines.filter(line -> line.startsWith("model name"))
+                        .map(line -> line.substring(line.indexOf(':') + 1).trim())
+                        .findFirst()
+                        .orElse(model);
+            }
+            catch (IOException | UncheckedIOException e) {
+                // Not Linux
+            }
+            List<String> caches = new ArrayList<>();
+            try (Stream<Path> indexes = Files.list(Path.of("/sys/devices/system/cpu/cpu0/cache"))) {
+                for (Path index : indexes.filter(path -> path.getFileName().toString().startsWith("index")).sorted().toList()) {
+                    String type = Files.readString(index.resolve("type")).trim();
+                    String level = Files.readString(index.resolve("level")).trim();
+                    String size = Files.readString(index.resolve("size")).trim();
+                    caches.add("L" + level + (type.equals("Data") ? "d" : type.equals("Instruction") ? "i" : "") + " " + size);
+                }
+            }
+            catch (IOException | UncheckedIOException e) {
+                // Not Linux
+            }
+            return model + "/" + Runtime.getRuntime().availableProcessors() + " cores/" + String.join(", ", caches);
+        }
+    }
+
+    /**
+     * Searches the {@link Config} space by successive halving: random candidates (and the default)
+     * run once each on a sample of the input, the faster half runs twice as often in the next round,
+     * and so on until one is left. A candidate whose result differs from the default's is dropped.
+     * minReservedBytesAtFileTail is not searched, as it only guards reads past the end of the file.
+     */
+    static final class AutoTuner {
+
+        private static final int WARMUP_RUNS = 3;
+
+        private static final int[] CHUNK_SIZE_BITS = { 16, 17, 18, 19, 20, 21, 22, 23, 24 };
+        private static final double[] COMMON_CHUNK_FRACTIONS = { 0, 0.01, 0.03, 0.05, 0.1, 0.2 };
+        private static final int[] COMMON_CHUNK_SIZE_BITS = { 14, 15, 16, 17, 18, 19, 20 };
+        private static final int[] HASHTABLE_SIZE_BITS = { 14, 15, 16, 17 };
+        private static final double[] MUNMAP_FRACTIONS = { 0, 0.01, 0.03, 0.1, 0.3 };
+
+        private final Path inputFile;
+        private final int nThreads;
+        private final long sampleBytes;
+        private final int candidates;
+        private final SplittableRandom random = new SplittableRandom(42);
+
+        AutoTuner(Path inputFile, int nThreads, long sampleBytes, int candidates) {
+            Checks.checkArg(candidates >= 1);
+            this.inputFile = inputFile;
+            this.nThreads = nThreads;
+            this.sampleBytes = sampleBytes;
+            this.candidates = candidates;
+        }
+
+        Config tune() throws Exception {
+            Path sample = EngineRunner.sample(inputFile, sampleBytes);
+            boolean tracing = Tracing.enabled;
+            Tracing.enabled = false;
+            try {
+                // Also warms up the JIT before the first candidate is timed.
+                String expected = run(sample, Config.DEFAULT).toString();
+                for (int i = 1; i < WARMUP_RUNS; i++) {
+                    run(sample, Config.DEFAULT);
+                }
+
+                Map<Config, Long> nanos = new LinkedHashMap<>();
+                nanos.put(Config.DEFAULT, Long.MAX_VALUE);
+                for (int attempt = 0; nanos.size() < candidates && attempt < 100 * candidates; attempt++) {
+                    nanos.putIfAbsent(randomConfig(), Long.MAX_VALUE);
+                }
+                List<Config> survivors = new ArrayList<>(nanos.keySet());
+                for (int repetitions = 1; survivors.size() > 1; repetitions *= 2) {
+                    for (Config config : List.copyOf(survivors)) {
+                        for (int i = 0; i < repetitions; i++) {
+                            long start = System.nanoTime();
+                            String result = run(sample, config).toString();
+                            nanos.merge(config, System.nanoTime() - start, Math::min);
+                            if (!result.equals(expected)) {
+                                System.err.println("Dropped " + config + ", its result differs");
+                                survivors.remove(config);
+                                break;
+                            }
+                        }
+                    }
+                    survivors.sort(Comparator.comparingLong(nanos::get));
+                    System.err.printf("%d runs each: best %s in %,d us%n", repetitions, survivors.get(0), nanos.get(survivors.get(0)) / 1_000);
+                    survivors = new ArrayList<>(survivors.subList(0, (survivors.size() + 1) / 2));
+                }
+                System.err.printf("Default configuration: %,d us%n", nanos.get(Config.DEFAULT) / 1_000);
+                return survivors.get(0);
+            }
+            finally {
+                Tracing.enabled = tracing;
+                Files.delete(sample);
+            }
+        }
+
+        private AggregateResult run(Path sample, Config config) throws Exception {
+            return new Runner(sample, nThreads, config, false, false).getSummaryStatistics();
+        }
+
+        private Config randomConfig() {
+            int chunkSizeBits = pick(CHUNK_SIZE_BITS);
+            int commonChunkSizeBits;
+            do {
+                commonChunkSizeBits = pick(COMMON_CHUNK_SIZE_BITS);
+            } while (commonChunkSizeBits > chunkSizeBits);
+            return new Config(chunkSizeBits, pick(COMMON_CHUNK_FRACTIONS), commonChunkSizeBits, pick(HASHTABLE_SIZE_BITS),
+                    Config.DEFAULT.minReservedBytesAtFileTail(), pick(MUNMAP_FRACTIONS));
+        }
+
+        private int pick(int[] values) {
+            return values[random.nextInt(values.length)];
+        }
+
+        private double pick(double[] values) {
+            return values[random.nextInt(values.length)];
         }
     }
 
@@ -439,8 +905,23 @@ public class CalculateAverage_vemana {
         private final int minReservedBytesAtFileTail;
         private final double munmapFraction;
         private final int nThreads;
+        private final boolean numa;
         private final int shardSizeBits;
 
+        public Runner(Path inputFile, int nThreads, Config config, boolean fakeAdvance, boolean numa) {
+            this(
+                    inputFile,
+                    nThreads,
+                    config.chunkSizeBits(),
+                    config.commonChunkFraction(),
+                    config.commonChunkSizeBits(),
+                    config.hashtableSizeBits(),
+                    config.minReservedBytesAtFileTail(),
+                    config.munmapFraction(),
+                    fakeAdvance,
+                    numa);
+        }
+
         public Runner(
                       Path inputFile,
                       int nThreads,
@@ -450,7 +931,8 @@ public class CalculateAverage_vemana {
                       int hashtableSizeBits,
                       int minReservedBytesAtFileTail,
                       double munmapFraction,
-                      boolean fakeAdvance) {
+                      boolean fakeAdvance,
+                      boolean numa) {
             this.inputFile = inputFile;
             this.nThreads = nThreads;
             this.shardSizeBits = chunkSizeBits;
@@ -460,20 +942,33 @@ public class CalculateAverage_vemana {
             this.minReservedBytesAtFileTail = minReservedBytesAtFileTail;
             this.munmapFraction = munmapFraction;
             this.fakeAdvance = fakeAdvance;
+            this.numa = numa;
         }
 
         AggregateResult getSummaryStatistics() throws Exception {
             int nThreads = this.nThreads < 0 ? Runtime.getRuntime().availableProcessors() : this.nThreads;
 
-            LazyShardQueue shardQueue = new SerialLazyShardQueue(
-                    1L << shardSizeBits,
-                    inputFile,
-                    nThreads,
-                    commonChunkFraction,
-                    commonChunkSizeBits,
-                    minReservedBytesAtFileTail,
-                    munmapFraction,
-                    fakeAdvance);
+            NumaTopology topology = numa ? NumaTopology.read() : null;
+            LazyShardQueue shardQueue = topology != null && topology.nodes() > 1
+                    ? new NumaLazyShardQueue(
+                            topology,
+                            1L << shardSizeBits,
+                            inputFile,
+                            nThreads,
+                            commonChunkFraction,
+                            commonChunkSizeBits,
+                            minReservedBytesAtFileTail,
+                            munmapFraction,
+                            fakeAdvance)
+                    : new SerialLazyShardQueue(
+                            1L << shardSizeBits,
+                            inputFile,
+                            nThreads,
+                            commonChunkFraction,
+                            commonChunkSizeBits,
+                            minReservedBytesAtFileTail,
+                            munmapFraction,
+                            fakeAdvance);
 
             ExecutorService executorService = Executors.newFixedThreadPool(
                     nThreads,
@@ -501,7 +996,26 @@ public class CalculateAverage_vemana {
             // particular, munmap() doesn't need to wait on merge.
             // First, submit a task to merge the results and then submit a task to cleanup bytebuffers
             // from completed shards.
-            Future<AggregateResult> resultFutures = executorService.submit(() -> merge(results));
+            Future<AggregateResult> resultFutures;
+            if (shardQueue instanceof NumaLazyShardQueue numaQueue) {
+                // Merge the shards of each node first, so that only one table per node crosses nodes.
+                // The pool thread that picks up a node's merge is still pinned to the node of the
+                // shard it processed, so move it to the node whose tables it merges.
+                List<Future<AggregateResult>> nodeResults = new ArrayList<>();
+                List<List<Future<AggregateResult>>> shardsByNode = numaQueue.groupByNode(results);
+                for (int node = 0; node < shardsByNode.size(); node++) {
+                    final int mergeNode = node;
+                    final List<Future<AggregateResult>> nodeShards = shardsByNode.get(node);
+                    nodeResults.add(executorService.submit(() -> {
+                        topology.pinCurrentThread(mergeNode);
+                        return merge(nodeShards);
+                    }));
+                }
+                resultFutures = executorService.submit(() -> merge(nodeResults));
+            }
+            else {
+                resultFutures = executorService.submit(() -> merge(results));
+            }
             // Note that munmap() is serial and not parallel and hence we use just one thread.
             executorService.submit(() -> closeByteBuffers(results, shardQueue));
 
@@ -535,6 +1049,21 @@ public class CalculateAverage_vemana {
 
         private AggregateResult merge(List<Future<AggregateResult>> results)
                 throws ExecutionException, InterruptedException {
+            if (!EngineEvents.enabled()) {
+                return mergeResults(results);
+            }
+            EngineEvents.Merge event = new EngineEvents.Merge();
+            event.begin();
+            AggregateResult result = mergeResults(results);
+            event.engine = ENGINE;
+            event.tables = results.size();
+            event.stations = result.tempStats() == null ? 0 : result.tempStats().size();
+            event.commit();
+            return result;
+        }
+
+        private AggregateResult mergeResults(List<Future<AggregateResult>> results)
+                throws ExecutionException, InterruptedException {
             Tracing.recordEvent("Merge start time");
             Map<String, Stat> output = null;
             boolean[] isDone = new boolean[results.size()];
@@ -578,6 +1107,7 @@ public class CalculateAverage_vemana {
         private final long fileSize;
         private final long[] perThreadData;
         private final RandomAccessFile raf;
+        private final long regionEnd;
         private final SeqLock seqLock;
 
         public SerialLazyShardQueue(
@@ -590,29 +1120,63 @@ public class CalculateAverage_vemana {
                                     double munmapFraction,
                                     boolean fakeAdvance)
                 throws IOException {
+            this(
+                    chunkSize,
+                    filePath,
+                    0,
+                    Long.MAX_VALUE,
+                    shards,
+                    commonChunkFraction,
+                    commonChunkSizeBits,
+                    fileTailReservedBytes,
+                    munmapFraction,
+                    fakeAdvance);
+        }
+
+        /**
+         * Distributes only [regionStart, regionEnd) of the file, clamped to the file size. Ranges at
+         * the region boundaries are newline-aligned the same way as chunk boundaries, so adjacent
+         * regions can be handed to separate queues.
+         */
+        public SerialLazyShardQueue(
+                                    long chunkSize,
+                                    Path filePath,
+                                    long regionStart,
+                                    long regionEnd,
+                                    int shards,
+                                    double commonChunkFraction,
+                                    int commonChunkSizeBits,
+                                    int fileTailReservedBytes,
+                                    double munmapFraction,
+                                    boolean fakeAdvance)
+                throws IOException {
             this.fakeAdvance = fakeAdvance;
             Checks.checkArg(commonChunkFraction < 0.9 && commonChunkFraction >= 0);
             Checks.checkArg(fileTailReservedBytes >= 0);
+            Checks.checkArg(regionStart <= regionEnd);
             this.raf = new RandomAccessFile(filePath.toFile(), "r");
             this.fileSize = raf.length();
             fileTailReservedBytes = fileTailReservedBytes == 0
                     ? 0
                     : consumeToPreviousNewLineExclusive(raf, fileTailReservedBytes);
             this.effectiveFileSize = fileSize - fileTailReservedBytes;
+            regionStart = Math.min(regionStart, effectiveFileSize);
+            this.regionEnd = Math.min(regionEnd, effectiveFileSize);
+            long regionSize = this.regionEnd - regionStart;
 
             // Common pool
-            long commonPoolStart = Math.min(
+            long commonPoolStart = regionStart + Math.min(
                     roundToNearestLowerMultipleOf(
-                            chunkSize, (long) (effectiveFileSize * (1 - commonChunkFraction))),
-                    effectiveFileSize);
+                            chunkSize, (long) (regionSize * (1 - commonChunkFraction))),
+                    regionSize);
             this.commonPool = new AtomicLong(commonPoolStart);
             this.commonChunkSize = 1L << commonChunkSizeBits;
 
             // Distribute chunks to shards
             this.perThreadData = new long[shards << 4]; // thread idx -> 16*idx to avoid cache line conflict
             for (long i = 0,
-                    currentStart = 0,
-                    remainingChunks = (commonPoolStart + chunkSize - 1) / chunkSize; i < shards; i++) {
+                    currentStart = regionStart,
+                    remainingChunks = (commonPoolStart - regionStart + chunkSize - 1) / chunkSize; i < shards; i++) {
                 long remainingShards = shards - i;
                 long currentChunks = (remainingChunks + remainingShards - 1) / remainingShards;
                 // Shard i handles: [currentStart, currentStart + currentChunks * chunkSize)
@@ -648,7 +1212,7 @@ public class CalculateAverage_vemana {
 
         @Override
         public Optional<ByteRange> fileTailEndWork(int idx) {
-            if (idx == 0 && effectiveFileSize < fileSize) {
+            if (idx == 0 && effectiveFileSize < fileSize && regionEnd == effectiveFileSize) {
                 ByteRange chunk = new ByteRange(raf, fileSize);
                 chunk.setRange(
                         effectiveFileSize == 0 ? 0 : effectiveFileSize - 1 /* will consume newline at eFS-1 */,
@@ -678,10 +1242,10 @@ public class CalculateAverage_vemana {
             else {
                 rangeStart = commonPool.getAndAdd(commonChunkSize);
                 // If that's exhausted too, nothing remains!
-                if (rangeStart >= effectiveFileSize) {
+                if (rangeStart >= regionEnd) {
                     return null;
                 }
-                rangeEnd = rangeStart + commonChunkSize;
+                rangeEnd = Math.min(rangeStart + commonChunkSize, regionEnd);
             }
 
             if (perThreadData[pos + 2] < perThreadData[pos + 3] && perThreadData[pos + 4] > 0) {
@@ -759,6 +1323,9 @@ public class CalculateAverage_vemana {
             // First process the file tail work to give ourselves freedom to go past ranges in parsing
             shardQueue.fileTailEndWork(shardIdx).ifPresent(this::processRangeSlow);
 
+            if (EngineEvents.enabled()) {
+                return processShardWithEvents();
+            }
             ByteRange range;
             while ((range = shardQueue.take(shardIdx)) != null) {
                 processRange(range);
@@ -766,6 +1333,30 @@ public class CalculateAverage_vemana {
             return result();
         }
 
+        // Same as the loop in processShardReal(), emitting EngineEvents for each range.
+        private AggregateResult processShardWithEvents() {
+            while (true) {
+                EngineEvents.ShardClaim claim = new EngineEvents.ShardClaim();
+                claim.begin();
+                ByteRange range = shardQueue.take(shardIdx);
+                if (range == null) {
+                    return result();
+                }
+                claim.engine = ENGINE;
+                claim.offset = range.bufferStart + range.startInBuf;
+                claim.length = range.endInBuf - range.startInBuf;
+                claim.commit();
+
+                EngineEvents.ShardFinish finish = new EngineEvents.ShardFinish();
+                finish.begin();
+                processRange(range);
+                finish.engine = ENGINE;
+                finish.offset = claim.offset;
+                finish.length = claim.length;
+                finish.commit();
+            }
+        }
+
         private void processRange(ByteRange range) {
             MappedByteBuffer mmb = range.byteBuffer;
             int nextPos = range.startInBuf;
@@ -1014,6 +1605,9 @@ public class CalculateAverage_vemana {
 
     static class Tracing {
 
+        // Off while auto-tuning, which runs the Runner many times
+        static volatile boolean enabled = true;
+
         private static final Map<String, ThreadTimingsArray> knownWorkThreadEvents;
         private static long startTime;
 
@@ -1051,6 +1645,9 @@ public class CalculateAverage_vemana {
         /////////////////////////////////////////////////////////////////////////////////////////////////
 
         private static void errPrint(String message) {
+            if (!enabled) {
+                return;
+            }
             System.err.println(message);
         }
 
@@ -0,0 +1,394 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Measurements pre-encoded into columns, so that repeated runs over the same data don't have to
+ * parse and hash the station names again. Station names are replaced by their index into a sorted
+ * dictionary and temperatures are stored as fixed-point tenths of a degree.
+ * <p>
+ * Layout, little-endian:
+ *
+ * <pre>
+ * long    magic
+ * int     version
+ * int     n                   number of stations, at most 65536
+ * long    rows
+ * long    sourceSize          size, modification time and checksum of the measurements file
+ * long    sourceModified      this was converted from
+ * long    sourceChecksum
+ * int     nameOffset[n + 1]   offsets into the name dictionary
+ * byte    names[]             UTF-8, sorted, padded to 64 bytes
+ * short   station[rows]       unsigned station ids, padded to 64 bytes
+ * short   temperature[rows]
+ * </pre>
+ */
+public class ColumnarMeasurements {
+
+    static final int MAX_STATIONS = 1 << 16;
+
+    private static final long MAGIC = 0x31425243434f4c4dL; // "1BRCCOLM"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final int FINGERPRINT_BYTES = 4096;
+
+    static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final MemorySegment segment;
+    private final int stations;
+    private final long rows;
+    private final long namesStart;
+    private final long stationStart;
+    private final long temperatureStart;
+
+    private ColumnarMeasurements(MemorySegment segment) {
+        if (segment.byteSize() < HEADER_SIZE || segment.get(LONG, 0) != MAGIC) {
+            throw new IllegalArgumentException("Not a columnar measurements file");
+        }
+        if (segment.get(INT, 8) != VERSION) {
+            throw new IllegalArgumentException("Unsupported version " + segment.get(INT, 8));
+        }
+        this.segment = segment;
+        this.stations = segment.get(INT, 12);
+        this.rows = segment.get(LONG, 16);
+        this.namesStart = HEADER_SIZE + (stations + 1L) * Integer.BYTES;
+        this.stationStart = align(namesStart + segment.get(INT, HEADER_SIZE + (long) stations * Integer.BYTES));
+        this.temperatureStart = align(stationStart + rows * Short.BYTES);
+    }
+
+    public static ColumnarMeasurements map(Path path, Arena arena) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new ColumnarMeasurements(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena));
+        }
+    }
+
+    public int stations() {
+        return stations;
+    }
+
+    public long rows() {
+        return rows;
+    }
+
+    public String name(int i) {
+        long start = segment.get(INT, HEADER_SIZE + (long) i * Integer.BYTES);
+        long end = segment.get(INT, HEADER_SIZE + (i + 1L) * Integer.BYTES);
+        return new String(segment.asSlice(namesStart + start, end - start).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+    }
+
+    /** Unsigned 16-bit station ids, one per row. */
+    public MemorySegment stationColumn() {
+        return segment.asSlice(stationStart, rows * Short.BYTES);
+    }
+
+    /** Temperatures in tenths of a degree, one 16-bit value per row. */
+    public MemorySegment temperatureColumn() {
+        return segment.asSlice(temperatureStart, rows * Short.BYTES);
+    }
+
+    /** Whether this was converted from the measurements file as it is now. */
+    public boolean isConvertedFrom(Path source) throws IOException {
+        try (var channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            return segment.get(LONG, 24) == channel.size()
+                    && segment.get(LONG, 32) == Files.getLastModifiedTime(source).toMillis()
+                    && segment.get(LONG, 40) == fingerprint(channel);
+        }
+    }
+
+    // CRC32 of the first and last bytes, to tell apart files of the same size and age.
+    private static long fingerprint(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int length = (int) Math.min(size, FINGERPRINT_BYTES);
+        CRC32 crc = new CRC32();
+        for (long position : new long[]{ 0, size - length }) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+            }
+            crc.update(buffer.flip());
+        }
+        return crc.getValue();
+    }
+
+    private static long align(long offset) {
+        return (offset + 63) & ~63L;
+    }
+
+    /**
+     * Converts a measurements file. A first parallel pass collects the station names and the number
+     * of rows per chunk of the input, a second one encodes each chunk into its rows of the output.
+     * <p>
+     * The output is written to a sibling ".tmp" file that is moved into place once complete, so that
+     * a conversion that fails or is killed never leaves a file that passes {@link #isConvertedFrom}.
+     */
+    public static void convert(Path source, Path target, int threads) throws IOException, InterruptedException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            encode(source, tmp, threads);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void encode(Path source, Path target, int threads) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (var in = FileChannel.open(source, StandardOpenOption.READ);
+                var out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                Arena arena = Arena.ofShared()) {
+            MemorySegment input = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size(), arena);
+            long[] chunks = split(input, threads * 8);
+            int chunkCount = chunks.length - 1;
+
+            List<Future<NameTable>> dictionaries = new ArrayList<>();
+            long[] chunkRows = new long[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                int chunk = i;
+                dictionaries.add(executor.submit(() -> {
+                    NameTable names = new NameTable();
+                    chunkRows[chunk] = parse(input, chunks[chunk], chunks[chunk + 1], names, (row, id, temperature) -> {
+                    });
+                    return names;
+                }));
+            }
+            TreeSet<String> sortedNames = new TreeSet<>();
+            for (Future<NameTable> dictionary : dictionaries) {
+                dictionary.get().addNamesTo(sortedNames);
+            }
+            if (sortedNames.size() > MAX_STATIONS) {
+                throw new IllegalArgumentException("More than " + MAX_STATIONS + " stations");
+            }
+
+            // Ids are the position in the sorted dictionary; lookups in the second pass are read-only.
+            NameTable ids = new NameTable();
+            List<byte[]> names = new ArrayList<>(sortedNames.size());
+            long namesSize = 0;
+            for (String name : sortedNames) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                ids.add(bytes, names.size());
+                names.add(bytes);
+                namesSize += bytes.length;
+            }
+            long rows = 0;
+            long[] firstRow = new long[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                firstRow[i] = rows;
+                rows += chunkRows[i];
+            }
+
+            int n = names.size();
+            long namesStart = HEADER_SIZE + (n + 1L) * Integer.BYTES;
+            long stationStart = align(namesStart + namesSize);
+            long temperatureStart = align(stationStart + rows * Short.BYTES);
+            MemorySegment output = out.map(FileChannel.MapMode.READ_WRITE, 0, temperatureStart + rows * Short.BYTES, arena);
+            output.set(LONG, 0, MAGIC);
+            output.set(INT, 8, VERSION);
+            output.set(INT, 12, n);
+            output.set(LONG, 16, rows);
+            output.set(LONG, 24, in.size());
+            output.set(LONG, 32, Files.getLastModifiedTime(source).toMillis());
+            output.set(LONG, 40, fingerprint(in));
+            long nameOffset = 0;
+            for (int i = 0; i < n; i++) {
+                byte[] name = names.get(i);
+                output.set(INT, HEADER_SIZE + (long) i * Integer.BYTES, (int) nameOffset);
+                MemorySegment.copy(name, 0, output, ValueLayout.JAVA_BYTE, namesStart + nameOffset, name.length);
+                nameOffset += name.length;
+            }
+            output.set(INT, HEADER_SIZE + (long) n * Integer.BYTES, (int) nameOffset);
+
+            List<Future<Long>> encoded = new ArrayList<>();
+            for (int i = 0; i < chunkCount; i++) {
+                int chunk = i;
+                encoded.add(executor.submit(() -> parse(input, chunks[chunk], chunks[chunk + 1], ids, (row, id, temperature) -> {
+                    long position = (firstRow[chunk] + row) * Short.BYTES;
+                    output.set(SHORT, stationStart + position, (short) id);
+                    output.set(SHORT, temperatureStart + position, (short) temperature);
+                })));
+            }
+            for (Future<Long> chunk : encoded) {
+                chunk.get();
+            }
+            output.force();
+        }
+        catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    interface RowConsumer {
+        void accept(long row, int id, int temperature);
+    }
+
+    // Parses the lines in [start, end) and returns their number. Unknown names are added to the table.
+    private static long parse(MemorySegment input, long start, long end, NameTable names, RowConsumer consumer) {
+        long row = 0;
+        long position = start;
+        while (position < end) {
+            long nameStart = position;
+            int hash = 0;
+            byte b;
+            while ((b = input.get(ValueLayout.JAVA_BYTE, position)) != ';') {
+                hash = hash * 31 + b;
+                position++;
+            }
+            int id = names.idOf(input, nameStart, (int) (position - nameStart), hash);
+            position++;
+
+            int sign = 1;
+            if (input.get(ValueLayout.JAVA_BYTE, position) == '-') {
+                sign = -1;
+                position++;
+            }
+            int temperature = 0;
+            while (position < end && (b = input.get(ValueLayout.JAVA_BYTE, position)) != '\n') {
+                if (b != '.') {
+                    temperature = temperature * 10 + (b - '0');
+                }
+                position++;
+            }
+            position++;
+            consumer.accept(row++, id, sign * temperature);
+        }
+        return row;
+    }
+
+    // Splits the input into line-aligned ranges, returned as parts + 1 boundaries.
+    private static long[] split(MemorySegment input, int parts) {
+        long size = input.byteSize();
+        long[] boundaries = new long[parts + 1];
+        for (int i = 1; i < parts; i++) {
+            long position = Math.max(boundaries[i - 1], size * i / parts);
+            while (position < size && (position == 0 || input.get(ValueLayout.JAVA_BYTE, position - 1) != '\n')) {
+                position++;
+            }
+            boundaries[i] = position;
+        }
+        boundaries[parts] = size;
+        return boundaries;
+    }
+
+    /** Open-addressing table from station name bytes to id, grown at half load. */
+    static final class NameTable {
+
+        private byte[][] names = new byte[1024][];
+        private int[] hashes = new int[1024];
+        private int[] ids = new int[1024];
+        private int size;
+
+        int idOf(MemorySegment input, long start, int length, int hash) {
+            int slot = hash & (names.length - 1);
+            while (true) {
+                byte[] name = names[slot];
+                if (name == null) {
+                    return add(input.asSlice(start, length).toArray(ValueLayout.JAVA_BYTE), hash, size);
+                }
+                if (hashes[slot] == hash && name.length == length
+                        && MemorySegment.mismatch(input, start, start + length, MemorySegment.ofArray(name), 0, length) < 0) {
+                    return ids[slot];
+                }
+                slot = (slot + 1) & (names.length - 1);
+            }
+        }
+
+        void add(byte[] name, int id) {
+            int hash = 0;
+            for (byte b : name) {
+                hash = hash * 31 + b;
+            }
+            add(name, hash, id);
+        }
+
+        private int add(byte[] name, int hash, int id) {
+            if (size == MAX_STATIONS) {
+                throw new IllegalArgumentException("More than " + MAX_STATIONS + " stations");
+            }
+            if (size * 2 >= names.length) {
+                byte[][] oldNames = names;
+                int[] oldHashes = hashes;
+                int[] oldIds = ids;
+                names = new byte[oldNames.length * 2][];
+                hashes = new int[names.length];
+                ids = new int[names.length];
+                for (int i = 0; i < oldNames.length; i++) {
+                    if (oldNames[i] != null) {
+                        insert(oldNames[i], oldHashes[i], oldIds[i]);
+                    }
+                }
+            }
+            insert(name, hash, id);
+            size++;
+            return id;
+        }
+
+        private void insert(byte[] name, int hash, int id) {
+            int slot = hash & (names.length - 1);
+            while (names[slot] != null) {
+                slot = (slot + 1) & (names.length - 1);
+            }
+            names[slot] = name;
+            hashes[slot] = hash;
+            ids[slot] = id;
+        }
+
+        void addNamesTo(TreeSet<String> target) {
+            for (byte[] name : names) {
+                if (name != null) {
+                    target.add(new String(name, StandardCharsets.UTF_8));
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && args[0].equals("convert")) {
+            long start = System.currentTimeMillis();
+            convert(Path.of(args[1]), Path.of(args[2]), Runtime.getRuntime().availableProcessors());
+            System.out.printf("Converted %s in %s ms%n", args[1], System.currentTimeMillis() - start);
+        }
+        else {
+            System.out.println("Usage: ColumnarMeasurements convert <measurements file> <output file>");
+            System.exit(1);
+        }
+    }
+}
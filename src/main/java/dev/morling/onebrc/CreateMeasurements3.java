@@ -20,10 +20,11 @@ import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
 
 public class CreateMeasurements3 {
@@ -31,6 +32,8 @@ public class CreateMeasurements3 {
     public static final int MAX_NAME_LEN = 100;
     public static final int KEYSET_SIZE = 10_000;
 
+    private static final Path MEASUREMENT_FILE = Path.of("measurements3.txt");
+
     public static void main(String[] args) throws Exception {
         if (args.length != 1) {
             System.out.println("Usage: create_measurements3.sh <number of records to create>");
@@ -48,29 +51,72 @@ public class CreateMeasurements3 {
         final var weatherStations = generateWeatherStations();
         final var start = System.currentTimeMillis();
         final var rnd = ThreadLocalRandom.current();
-        try (var out = new BufferedWriter(new FileWriter("measurements3.txt"))) {
+        final var expected = new ExpectedResult(KEYSET_SIZE);
+        try (var out = new BufferedWriter(new FileWriter(MEASUREMENT_FILE.toFile()))) {
             for (int i = 1; i <= size; i++) {
-                var station = weatherStations.get(rnd.nextInt(KEYSET_SIZE));
+                var index = rnd.nextInt(KEYSET_SIZE);
+                var station = weatherStations.get(index);
                 double temp = rnd.nextGaussian(station.avgTemp, 7.0);
+                long tenths = Math.round(temp * 10.0);
                 out.write(station.name);
                 out.write(';');
-                out.write(Double.toString(Math.round(temp * 10.0) / 10.0));
+                out.write(Double.toString(tenths / 10.0));
                 out.newLine();
+                expected.add(index, tenths);
                 if (i % 50_000_000 == 0) {
                     System.out.printf("Wrote %,d measurements in %,d ms%n", i, System.currentTimeMillis() - start);
                 }
             }
         }
+        expected.write(MEASUREMENT_FILE, weatherStations.stream().map(WeatherStation::name).toList());
     }
 
     record WeatherStation(String name, float avgTemp) {
     }
 
+    /** Length of a generated name, before it is made unique and cut to at most 100 bytes. */
+    interface NameLengths {
+        int next(Random rnd);
+
+        // A 7th-order curve: mostly short names, but with large outliers.
+        NameLengths CURVE = rnd -> (int) (4 + 2500 * Math.pow(rnd.nextDouble() - 0.372, 7));
+
+        static NameLengths uniform(int min, int max) {
+            return rnd -> min + rnd.nextInt(max - min + 1);
+        }
+
+        static NameLengths fixed(int length) {
+            return rnd -> length;
+        }
+
+        /** Parses "curve", "uniform:MIN:MAX" or "fixed:N". */
+        static NameLengths parse(String spec) {
+            String[] parts = spec.split(":");
+            return switch (parts[0]) {
+                case "curve" -> CURVE;
+                case "uniform" -> uniform(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                case "fixed" -> fixed(Integer.parseInt(parts[1]));
+                default -> throw new IllegalArgumentException("Unknown name length distribution: " + spec);
+            };
+        }
+    }
+
     private static ArrayList<WeatherStation> generateWeatherStations() throws Exception {
+        return generateWeatherStations(KEYSET_SIZE, NameLengths.CURVE, ThreadLocalRandom.current());
+    }
+
+    /**
+     * Generates unique station names by cutting random-length pieces out of the concatenated names in
+     * data/weather_stations.csv, each station taking its mean temperature from the latitude of the
+     * next row. Both the rows and the name source are reused from the start when exhausted, so any
+     * number of stations can be generated.
+     */
+    static ArrayList<WeatherStation> generateWeatherStations(int count, NameLengths nameLengths, Random rnd) throws IOException {
         // Use a public list of city names and concatenate them all into a long string,
         // which we'll use as a "source of city name randomness"
         var bigName = new StringBuilder(1 << 20);
-        try (var rows = new BufferedReader(new FileReader("data/weather_stations.csv"));) {
+        var latitudes = new ArrayList<Float>();
+        try (var rows = new BufferedReader(new FileReader("data/weather_stations.csv", StandardCharsets.UTF_8))) {
             skipComments(rows);
             while (true) {
                 var row = rows.readLine();
@@ -78,71 +124,65 @@ public class CreateMeasurements3 {
                     break;
                 }
                 bigName.append(row, 0, row.indexOf(';'));
+                latitudes.add(Float.parseFloat(row.substring(row.indexOf(';') + 1)));
             }
         }
-        final var weatherStations = new ArrayList<WeatherStation>();
+        final var weatherStations = new ArrayList<WeatherStation>(count);
         final var names = new HashSet<String>();
         var minLen = Integer.MAX_VALUE;
         var maxLen = Integer.MIN_VALUE;
-        try (var rows = new BufferedReader(new FileReader("data/weather_stations.csv"))) {
-            skipComments(rows);
-            final var nameSource = new StringReader(bigName.toString());
-            final var buf = new char[MAX_NAME_LEN];
-            final var rnd = ThreadLocalRandom.current();
-            final double yOffset = 4;
-            final double factor = 2500;
-            final double xOffset = 0.372;
-            final double power = 7;
-            for (int i = 0; i < KEYSET_SIZE; i++) {
-                var row = rows.readLine();
-                if (row == null) {
-                    break;
+        final var nameSource = new NameSource(bigName);
+        for (int i = 0; i < count; i++) {
+            var nameLen = Math.clamp(nameLengths.next(rnd), 1, MAX_NAME_LEN);
+            var nameBuf = new StringBuilder(nameLen);
+            for (int c = 0; c < nameLen; c++) {
+                nameBuf.append(nameSource.read());
+            }
+            if (Character.isWhitespace(nameBuf.charAt(0))) {
+                nameBuf.setCharAt(0, nameSource.readNonSpace());
+            }
+            if (Character.isWhitespace(nameBuf.charAt(nameBuf.length() - 1))) {
+                nameBuf.setCharAt(nameBuf.length() - 1, nameSource.readNonSpace());
+            }
+            var name = nameBuf.toString();
+            // With many keys the short names run out, so grow a name that keeps colliding.
+            for (int attempt = 1; names.contains(name); attempt++) {
+                if (attempt % 8 == 0 && nameBuf.length() < MAX_NAME_LEN) {
+                    nameBuf.append(nameSource.readNonSpace());
                 }
-                // Use a 7th-order curve to simulate the name length distribution.
-                // It gives us mostly short names, but with large outliers.
-                var nameLen = (int) (yOffset + factor * Math.pow(rnd.nextDouble() - xOffset, power));
-                var count = nameSource.read(buf, 0, nameLen);
-                if (count == -1) {
-                    throw new Exception("Name source exhausted");
+                else {
+                    nameBuf.setCharAt(rnd.nextInt(nameBuf.length()), nameSource.readNonSpace());
                 }
-                var nameBuf = new StringBuilder(nameLen);
-                nameBuf.append(buf, 0, nameLen);
-                if (Character.isWhitespace(nameBuf.charAt(0))) {
-                    nameBuf.setCharAt(0, readNonSpace(nameSource));
+                name = nameBuf.toString();
+            }
+            int actualLen;
+            while (true) {
+                actualLen = name.getBytes(StandardCharsets.UTF_8).length;
+                if (actualLen <= 100) {
+                    break;
                 }
+                nameBuf.deleteCharAt(nameBuf.length() - 1);
                 if (Character.isWhitespace(nameBuf.charAt(nameBuf.length() - 1))) {
-                    nameBuf.setCharAt(nameBuf.length() - 1, readNonSpace(nameSource));
-                }
-                var name = nameBuf.toString();
-                while (names.contains(name)) {
-                    nameBuf.setCharAt(rnd.nextInt(nameBuf.length()), readNonSpace(nameSource));
-                    name = nameBuf.toString();
+                    nameBuf.setCharAt(nameBuf.length() - 1, nameSource.readNonSpace());
                 }
-                int actualLen;
-                while (true) {
-                    actualLen = name.getBytes(StandardCharsets.UTF_8).length;
-                    if (actualLen <= 100) {
-                        break;
-                    }
-                    nameBuf.deleteCharAt(nameBuf.length() - 1);
-                    if (Character.isWhitespace(nameBuf.charAt(nameBuf.length() - 1))) {
-                        nameBuf.setCharAt(nameBuf.length() - 1, readNonSpace(nameSource));
-                    }
+                name = nameBuf.toString();
+                if (names.contains(name)) {
+                    nameBuf.setCharAt(rnd.nextInt(nameBuf.length()), nameSource.readNonSpace());
                     name = nameBuf.toString();
                 }
-                if (name.indexOf(';') != -1) {
-                    throw new Exception("Station name contains a semicolon!");
-                }
-                names.add(name);
-                minLen = Integer.min(minLen, actualLen);
-                maxLen = Integer.max(maxLen, actualLen);
-                var lat = Float.parseFloat(row.substring(row.indexOf(';') + 1));
-                // Guesstimate mean temperature using cosine of latitude
-                var avgTemp = (float) (30 * Math.cos(Math.toRadians(lat))) - 10;
-                weatherStations.add(new WeatherStation(name, avgTemp));
             }
+            if (name.indexOf(';') != -1) {
+                throw new IllegalStateException("Station name contains a semicolon!");
+            }
+            names.add(name);
+            minLen = Integer.min(minLen, actualLen);
+            maxLen = Integer.max(maxLen, actualLen);
+            var lat = latitudes.get(i % latitudes.size());
+            // Guesstimate mean temperature using cosine of latitude
+            var avgTemp = (float) (30 * Math.cos(Math.toRadians(lat))) - 10;
+            weatherStations.add(new WeatherStation(name, avgTemp));
         }
-        System.out.format("Generated %,d station names with length from %,d to %,d%n", KEYSET_SIZE, minLen, maxLen);
+        System.out.format("Generated %,d station names with length from %,d to %,d%n", count, minLen, maxLen);
         return weatherStations;
     }
 
@@ -151,15 +191,28 @@ public class CreateMeasurements3 {
         }
     }
 
-    private static char readNonSpace(StringReader nameSource) throws IOException {
-        while (true) {
-            var n = nameSource.read();
-            if (n == -1) {
-                throw new IOException("Name source exhausted");
+    // The concatenated names, read in a loop.
+    private static class NameSource {
+        private final CharSequence chars;
+        private int position;
+
+        NameSource(CharSequence chars) {
+            this.chars = chars;
+        }
+
+        char read() {
+            if (position == chars.length()) {
+                position = 0;
             }
-            var ch = (char) n;
-            if (ch != ' ') {
-                return ch;
+            return chars.charAt(position++);
+        }
+
+        char readNonSpace() {
+            while (true) {
+                var ch = read();
+                if (ch != ' ') {
+                    return ch;
+                }
             }
         }
     }
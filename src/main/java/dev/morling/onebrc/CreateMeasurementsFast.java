@@ -17,6 +17,7 @@ package dev.morling.onebrc;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -29,6 +30,7 @@ import java.util.concurrent.ThreadLocalRandom;
 public class CreateMeasurementsFast {
 
     private static final Path MEASUREMENT_FILE = Path.of("./measurements.txt");
+    private static final Path COMPRESSED_MEASUREMENT_FILE = Path.of("./measurements.blkz");
     static final Executor EXECUTOR_SERVICE = Executors.newWorkStealingPool();
 
     private record WeatherStation(String id, double meanTemperature) {
@@ -41,8 +43,9 @@ public class CreateMeasurementsFast {
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        boolean compressed = args.length == 2 && args[1].equals("--compressed");
+        if (args.length != 1 && !compressed) {
+            System.out.println("Usage: create_measurements_fast.sh <number of records to create> [--compressed]");
             System.exit(1);
         }
 
@@ -56,12 +59,18 @@ public class CreateMeasurementsFast {
             System.exit(1);
         }
 
-        try {
-            Files.deleteIfExists(MEASUREMENT_FILE);
-            Files.createFile(MEASUREMENT_FILE);
+        BlockCompressedFile.Writer compressedWriter = null;
+        if (compressed) {
+            compressedWriter = new BlockCompressedFile.Writer(COMPRESSED_MEASUREMENT_FILE);
         }
-        catch (Exception e) {
-            // ignore
+        else {
+            try {
+                Files.deleteIfExists(MEASUREMENT_FILE);
+                Files.createFile(MEASUREMENT_FILE);
+            }
+            catch (Exception e) {
+                // ignore
+            }
         }
 
         // @formatter:off
@@ -510,16 +519,35 @@ public class CreateMeasurementsFast {
         }
         CompletableFuture<?>[] futures = new CompletableFuture[numberOfFutures];
 
+        final BlockCompressedFile.Writer writer = compressedWriter;
+        final ExpectedResult expected = new ExpectedResult(stations.size());
         for (int n = 0; n < numberOfFutures; n++) {
             int finalN = n;
             futures[n] = CompletableFuture.runAsync(() -> {
                 StringBuilder builder = new StringBuilder();
+                ExpectedResult chunkExpected = new ExpectedResult(stations.size());
                 for (int i = finalN * chunkSize; i <= (finalN + 1) * chunkSize - 1; i++) {
-                    WeatherStation station = stations.get(ThreadLocalRandom.current().nextInt(stations.size()));
+                    int index = ThreadLocalRandom.current().nextInt(stations.size());
+                    WeatherStation station = stations.get(index);
+                    double measurement = station.measurement();
                     builder.append(station.id())
                             .append(";")
-                            .append(station.measurement())
+                            .append(measurement)
                             .append('\n');
+                    chunkExpected.add(index, Math.round(measurement * 10.0));
+                }
+                synchronized (expected) {
+                    expected.addAll(chunkExpected);
+                }
+                if (writer != null) {
+                    byte[] text = builder.toString().getBytes(StandardCharsets.UTF_8);
+                    try {
+                        writer.writeLines(text, text.length);
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return;
                 }
                 try (BufferedWriter bw = Files.newBufferedWriter(MEASUREMENT_FILE, StandardOpenOption.APPEND)) {
                     bw.write(builder.toString());
@@ -531,6 +559,10 @@ public class CreateMeasurementsFast {
         }
 
         CompletableFuture.allOf(futures).join();
+        if (writer != null) {
+            writer.close();
+        }
+        expected.write(compressed ? COMPRESSED_MEASUREMENT_FILE : MEASUREMENT_FILE, stations.stream().map(WeatherStation::id).toList());
 
         System.out.printf("Created file with %,d measurements in %s ms%n", size, System.currentTimeMillis() - start);
     }
@@ -0,0 +1,206 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.rschwietzke.FastRandom;
+
+/**
+ * Creates measurements.txt for the stations of {@link CreateMeasurements} using all cores.
+ * <p>
+ * The rows are split into chunks of {@link #ROWS_PER_CHUNK} rows, each with its own
+ * {@link FastRandom} seeded from the seed and the chunk number. A first pass runs the random
+ * streams only to size each chunk, then the file is pre-sized and each chunk is formatted as bytes
+ * straight into its own mapped region. The output therefore only depends on the seed and the
+ * number of rows, not on the number of threads.
+ * <p>
+ * Measurements are approximately Gaussian around the station mean, with a standard deviation of
+ * about 10 degrees, using the sum of four uniform values instead of {@code nextGaussian()}.
+ */
+public class CreateMeasurementsParallel {
+
+    private static final String USAGE = "Usage: create_measurements_parallel.sh <number of records to create> [--seed <n>] [--threads <n>] [--output <file>]";
+
+    static final int ROWS_PER_CHUNK = 1 << 20;
+
+    // Half-width of each of the four uniform terms, in tenths, giving a standard deviation of ~100
+    private static final int SPREAD = 87;
+
+    private static final int REPORT_EVERY = 64;
+
+    public static void main(String[] args) throws Exception {
+        long start = System.currentTimeMillis();
+
+        long size = 0;
+        long seed = System.nanoTime();
+        int threads = Runtime.getRuntime().availableProcessors();
+        var output = Path.of("./measurements.txt");
+        try {
+            size = Long.parseLong(args[0]);
+            for (int i = 1; i < args.length; i += 2) {
+                var value = args[i + 1];
+                switch (args[i]) {
+                    case "--seed" -> seed = Long.parseLong(value);
+                    case "--threads" -> threads = Integer.parseInt(value);
+                    case "--output" -> output = Path.of(value);
+                    default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (size < 0 || threads < 1) {
+                throw new IllegalArgumentException("Negative value");
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        var generator = new Generator(CreateMeasurements.STATIONS, seed, size);
+        int chunks = generator.chunks();
+        long[] offsets = new long[chunks + 1];
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // First pass: the size of each chunk
+            var sizes = new ArrayList<Future<Long>>(chunks);
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                int c = chunk;
+                sizes.add(executor.submit(() -> generator.chunk(c, null, null)));
+            }
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                offsets[chunk + 1] = offsets[chunk] + sizes.get(chunk).get();
+            }
+
+            // Second pass: format each chunk into its region of the pre-sized file
+            try (var file = new RandomAccessFile(output.toFile(), "rw")) {
+                file.setLength(offsets[chunks]);
+                FileChannel channel = file.getChannel();
+                var written = new AtomicInteger();
+                var expected = new ExpectedResult(generator.stations());
+                var writes = new ArrayList<Future<?>>(chunks);
+                for (int chunk = 0; chunk < chunks; chunk++) {
+                    int c = chunk;
+                    writes.add(executor.submit(() -> {
+                        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, offsets[c], offsets[c + 1] - offsets[c]);
+                        var chunkExpected = new ExpectedResult(generator.stations());
+                        generator.chunk(c, region, chunkExpected);
+                        synchronized (expected) {
+                            expected.addAll(chunkExpected);
+                        }
+                        int done = written.incrementAndGet();
+                        if (done % REPORT_EVERY == 0) {
+                            System.out.printf("Wrote %,d of %,d chunks in %s ms%n", done, chunks, System.currentTimeMillis() - start);
+                        }
+                        return null;
+                    }));
+                }
+                for (var write : writes) {
+                    write.get();
+                }
+                expected.write(output, CreateMeasurements.STATIONS.stream().map(CreateMeasurements.WeatherStation::id).toList());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        System.out.printf("Created file with %,d measurements (%,d bytes, seed %d) in %s ms%n", size, offsets[chunks], seed,
+                System.currentTimeMillis() - start);
+    }
+
+    static final class Generator {
+        private final byte[][] prefixes;
+        private final int[] meanTenths;
+        private final long seed;
+        private final long rows;
+
+        Generator(List<CreateMeasurements.WeatherStation> stations, long seed, long rows) {
+            this.prefixes = new byte[stations.size()][];
+            this.meanTenths = new int[stations.size()];
+            for (int i = 0; i < stations.size(); i++) {
+                prefixes[i] = (stations.get(i).id() + ";").getBytes(StandardCharsets.UTF_8);
+                meanTenths[i] = (int) Math.round(stations.get(i).meanTemperature() * 10);
+            }
+            this.seed = seed;
+            this.rows = rows;
+        }
+
+        int stations() {
+            return prefixes.length;
+        }
+
+        int chunks() {
+            return (int) ((rows + ROWS_PER_CHUNK - 1) / ROWS_PER_CHUNK);
+        }
+
+        /**
+         * Generates the rows of the given chunk into {@code region} and {@code expected}, or only
+         * returns their size if {@code region} is null.
+         */
+        long chunk(int chunk, MappedByteBuffer region, ExpectedResult expected) {
+            var random = new FastRandom(chunkSeed(chunk));
+            long count = Math.min(ROWS_PER_CHUNK, rows - (long) chunk * ROWS_PER_CHUNK);
+            int stationCount = prefixes.length;
+            long size = 0;
+            int pos = 0;
+            byte[] temperature = new byte[8];
+            for (long i = 0; i < count; i++) {
+                int station = random.nextInt(stationCount);
+                int tenths = meanTenths[station] + random.nextInt(2 * SPREAD + 1) + random.nextInt(2 * SPREAD + 1)
+                        + random.nextInt(2 * SPREAD + 1) + random.nextInt(2 * SPREAD + 1) - 4 * SPREAD;
+                tenths = Math.max(-999, Math.min(999, tenths));
+                byte[] prefix = prefixes[station];
+                if (region == null) {
+                    size += prefix.length + temperatureLength(tenths) + 1;
+                }
+                else {
+                    region.put(pos, prefix);
+                    pos += prefix.length;
+                    int length = ExpectedResult.formatTenths(temperature, 0, tenths);
+                    region.put(pos, temperature, 0, length);
+                    pos += length;
+                    region.put(pos++, (byte) '\n');
+                    expected.add(station, tenths);
+                }
+            }
+            return region == null ? size : pos;
+        }
+
+        // SplitMix64 of the seed and chunk number, never 0 as that would stop the xorshift
+        private long chunkSeed(int chunk) {
+            long z = seed + (chunk + 1) * 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z ^= z >>> 31;
+            return z == 0 ? 1 : z;
+        }
+    }
+
+    // Length of the temperature as written by ExpectedResult.formatTenths
+    static int temperatureLength(int tenths) {
+        int abs = Math.abs(tenths);
+        return (tenths < 0 ? 4 : 3) + (abs >= 100 ? 1 : 0);
+    }
+}
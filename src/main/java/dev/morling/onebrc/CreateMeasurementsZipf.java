@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Creates a measurements file with a configurable number of stations whose rows follow a Zipf
+ * distribution, so that a few hot keys get most of the rows, as in real traffic. Station names
+ * are generated like in {@link CreateMeasurements3}, with a configurable name length distribution.
+ * <p>
+ * With {@code --zipf 0} all stations are equally likely. With a seed, the output is reproducible.
+ */
+public class CreateMeasurementsZipf {
+
+    private static final String USAGE = "Usage: create_measurements_zipf.sh <number of records to create> [--keys <n>] [--zipf <exponent>] "
+            + "[--name-lengths curve|uniform:<min>:<max>|fixed:<n>] [--seed <n>] [--output <file>]";
+
+    public static void main(String[] args) throws Exception {
+        long size = 0;
+        int keys = CreateMeasurements3.KEYSET_SIZE;
+        double exponent = 1.0;
+        var nameLengths = CreateMeasurements3.NameLengths.CURVE;
+        long seed = System.nanoTime();
+        var output = Path.of("measurements.txt");
+        try {
+            size = Long.parseLong(args[0]);
+            for (int i = 1; i < args.length; i += 2) {
+                var value = args[i + 1];
+                switch (args[i]) {
+                    case "--keys" -> keys = Integer.parseInt(value);
+                    case "--zipf" -> exponent = Double.parseDouble(value);
+                    case "--name-lengths" -> nameLengths = CreateMeasurements3.NameLengths.parse(value);
+                    case "--seed" -> seed = Long.parseLong(value);
+                    case "--output" -> output = Path.of(value);
+                    default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (size < 0 || keys < 1 || exponent < 0) {
+                throw new IllegalArgumentException("Negative value");
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        var rnd = new Random(seed);
+        var stations = CreateMeasurements3.generateWeatherStations(keys, nameLengths, rnd);
+        var sampler = new ZipfSampler(keys, exponent);
+        System.out.printf("Zipf exponent %.2f: the top 1%% of stations get %.1f%% of the rows, the top station %.2f%%%n",
+                exponent, 100 * sampler.share(Math.max(1, keys / 100)), 100 * sampler.share(1));
+
+        var names = new byte[keys][];
+        for (int i = 0; i < keys; i++) {
+            names[i] = stations.get(i).name().getBytes(StandardCharsets.UTF_8);
+        }
+        long start = System.currentTimeMillis();
+        var expected = new ExpectedResult(keys);
+        try (var out = new BufferedOutputStream(Files.newOutputStream(output), 1 << 20)) {
+            write(out, size, stations, names, sampler, rnd, expected, start);
+        }
+        expected.write(output, stations.stream().map(CreateMeasurements3.WeatherStation::name).toList());
+        System.out.printf("Wrote %,d measurements for %,d stations to %s in %,d ms%n", size, keys, output, System.currentTimeMillis() - start);
+    }
+
+    private static void write(OutputStream out, long size, List<CreateMeasurements3.WeatherStation> stations, byte[][] names,
+                              ZipfSampler sampler, Random rnd, ExpectedResult expected, long start)
+            throws IOException {
+        var line = new byte[CreateMeasurements3.MAX_NAME_LEN + 8];
+        for (long i = 1; i <= size; i++) {
+            int station = sampler.next(rnd);
+            var name = names[station];
+            System.arraycopy(name, 0, line, 0, name.length);
+            int pos = name.length;
+            line[pos++] = ';';
+            long tenths = Math.max(-999, Math.min(999, Math.round(rnd.nextGaussian(stations.get(station).avgTemp(), 7.0) * 10.0)));
+            pos = ExpectedResult.formatTenths(line, pos, (int) tenths);
+            expected.add(station, tenths);
+            line[pos++] = '\n';
+            out.write(line, 0, pos);
+            if (i % 50_000_000 == 0) {
+                System.out.printf("Wrote %,d measurements in %,d ms%n", i, System.currentTimeMillis() - start);
+            }
+        }
+    }
+
+    /** Picks rank k (0-based) with a probability proportional to 1 / (k + 1)^exponent. */
+    static final class ZipfSampler {
+        private final double[] cdf;
+
+        ZipfSampler(int keys, double exponent) {
+            cdf = new double[keys];
+            double sum = 0;
+            for (int k = 0; k < keys; k++) {
+                sum += 1 / Math.pow(k + 1, exponent);
+                cdf[k] = sum;
+            }
+            for (int k = 0; k < keys; k++) {
+                cdf[k] /= sum;
+            }
+            cdf[keys - 1] = 1.0;
+        }
+
+        int next(Random rnd) {
+            int index = Arrays.binarySearch(cdf, rnd.nextDouble());
+            return index >= 0 ? index : -index - 1;
+        }
+
+        /** The share of all rows going to the top {@code n} keys. */
+        double share(int n) {
+            return cdf[n - 1];
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.management.ManagementFactory;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generalizes the forked worker of {@link CalculateAverage_thomaswue} to several worker processes.
+ * The coordinator splits the input files into line-aligned byte ranges and hands them out over a
+ * Unix domain socket; each worker asks for the next range once it is done with the previous one, so
+ * faster workers take more of them. Workers parse their ranges with the thomaswue kernel and, when
+ * no ranges are left, reply with their partial result as an {@link AggregateSnapshot}, which the
+ * coordinator merges.
+ * <p>
+ * Usage: {@code DistributedCoordinator [--workers <n>] [--threads <per worker>] [files...]}. Each
+ * worker defaults to its share of the available processors. On multi-socket hosts, pass
+ * {@code --workers} equal to the number of NUMA nodes and start the coordinator under
+ * {@code numactl --interleave=all}, or bind each worker by setting {@code WORKER_PREFIX}, e.g. to
+ * {@code "numactl --cpunodebind=%d --membind=%d"}, where {@code %d} is the worker index.
+ */
+public class DistributedCoordinator {
+
+    private static final String FILE = "./measurements.txt";
+
+    // Ranges per worker, so that the work can be balanced if one of them falls behind.
+    private static final int RANGES_PER_WORKER = 8;
+    private static final int MIN_RANGE_SIZE = 1 << 20;
+    private static final int ACCEPT_POLL_MILLIS = 10;
+
+    record Range(String file, long start, long end) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 4 && args[0].equals("--worker")) {
+            worker(Path.of(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+
+        int workers = 2;
+        int threads = -1;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--workers" -> workers = Integer.parseInt(args[++i]);
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                default -> files.add(Path.of(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            files.add(Path.of(FILE));
+        }
+        if (threads < 0) {
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors() / workers);
+        }
+
+        System.out.println(coordinate(split(files, workers * RANGES_PER_WORKER), workers, threads));
+        System.out.close();
+    }
+
+    static AggregateSnapshot coordinate(List<Range> ranges, int workers, int threads) throws Exception {
+        Queue<Range> queue = new ConcurrentLinkedQueue<>(ranges);
+        Path directory = Files.createTempDirectory("1brc-coordinator");
+        Path socketPath = directory.resolve("coordinator.sock");
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        List<Process> processes = new ArrayList<>();
+        try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            for (int i = 0; i < workers; i++) {
+                processes.add(startWorker(i, socketPath, threads));
+            }
+
+            // Poll for connections, as a worker that fails to start would never connect. Workers send
+            // their index first; one that connected may finish before the others connect, so only
+            // the exit of a worker that has not connected yet is a failure.
+            server.configureBlocking(false);
+            boolean[] connected = new boolean[workers];
+            List<Future<AggregateSnapshot>> partials = new ArrayList<>();
+            while (partials.size() < workers) {
+                SocketChannel channel = server.accept();
+                if (channel == null) {
+                    for (int i = 0; i < workers; i++) {
+                        if (!connected[i] && !processes.get(i).isAlive()) {
+                            throw new IOException("Worker " + i + " exited with status " + processes.get(i).exitValue() + " before connecting");
+                        }
+                    }
+                    Thread.sleep(ACCEPT_POLL_MILLIS);
+                    continue;
+                }
+                connected[readIndex(channel, workers)] = true;
+                partials.add(executor.submit(() -> serve(channel, queue)));
+            }
+
+            // A worker that dies while parsing closes its socket, which fails its serve().
+            List<AggregateSnapshot> snapshots = new ArrayList<>();
+            for (Future<AggregateSnapshot> partial : partials) {
+                try {
+                    snapshots.add(partial.get());
+                }
+                catch (ExecutionException e) {
+                    throw new IOException("A worker failed before sending its partial result", e.getCause());
+                }
+            }
+            // Don't wait for the workers to exit, they unmap their input in exit().
+            return AggregateSnapshot.merge(snapshots);
+        }
+        catch (Exception e) {
+            processes.forEach(Process::destroy);
+            throw e;
+        }
+        finally {
+            executor.shutdownNow();
+            Files.deleteIfExists(socketPath);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static Process startWorker(int index, Path socketPath, int threads) throws IOException {
+        List<String> command = new ArrayList<>();
+        String prefix = System.getenv("WORKER_PREFIX");
+        if (prefix != null && !prefix.isBlank()) {
+            command.addAll(List.of(prefix.replace("%d", Integer.toString(index)).trim().split("\\s+")));
+        }
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.addAll(List.of("--class-path", System.getProperty("java.class.path"), DistributedCoordinator.class.getName(),
+                "--worker", socketPath.toString(), Integer.toString(index), Integer.toString(threads)));
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    // Reads the index a worker sends when it connects; accepted channels are blocking.
+    private static int readIndex(SocketChannel channel, int workers) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("A worker closed its connection before sending its index");
+            }
+        }
+        int index = buffer.flip().getInt();
+        if (index < 0 || index >= workers) {
+            throw new IOException("Unknown worker index " + index);
+        }
+        return index;
+    }
+
+    // Hands out ranges to one worker until none are left, then returns its partial result.
+    private static AggregateSnapshot serve(SocketChannel channel, Queue<Range> queue) throws IOException {
+        try (channel;
+                var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            Range range;
+            while ((range = queue.poll()) != null) {
+                out.writeBoolean(true);
+                out.writeUTF(range.file());
+                out.writeLong(range.start());
+                out.writeLong(range.end());
+                out.flush();
+                in.readBoolean();
+            }
+            out.writeBoolean(false);
+            out.flush();
+
+            byte[] snapshot = new byte[in.readInt()];
+            in.readFully(snapshot);
+            return AggregateSnapshot.of(MemorySegment.ofArray(snapshot));
+        }
+    }
+
+    private static void worker(Path socketPath, int index, int threads) throws IOException, InterruptedException {
+        Map<String, FileChannel> files = new HashMap<>();
+        AggregateSnapshot.Builder partial = AggregateSnapshot.builder();
+        try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+                var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            out.writeInt(index);
+            out.flush();
+            while (in.readBoolean()) {
+                String file = in.readUTF();
+                long start = in.readLong();
+                long end = in.readLong();
+                FileChannel fileChannel = files.get(file);
+                if (fileChannel == null) {
+                    fileChannel = FileChannel.open(Path.of(file), StandardOpenOption.READ);
+                    files.put(file, fileChannel);
+                }
+                for (CalculateAverage_thomaswue.Result r : CalculateAverage_thomaswue.process(fileChannel, start, end, threads, false).values()) {
+                    partial.add(r.calcName(), r.min, r.max, r.sum, r.count);
+                }
+                out.writeBoolean(true);
+                out.flush();
+            }
+
+            AggregateSnapshot snapshot = partial.build();
+            out.writeInt((int) snapshot.byteSize());
+            snapshot.writeTo(Channels.newChannel(out));
+            out.flush();
+        }
+        finally {
+            for (FileChannel fileChannel : files.values()) {
+                fileChannel.close();
+            }
+        }
+    }
+
+    // Splits the files into line-aligned ranges of roughly equal size.
+    static List<Range> split(List<Path> files, int parts) throws IOException {
+        long total = 0;
+        for (Path file : files) {
+            total += Files.size(file);
+        }
+        long rangeSize = Math.max(MIN_RANGE_SIZE, Math.ceilDiv(total, parts));
+
+        List<Range> ranges = new ArrayList<>();
+        for (Path file : files) {
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                long start = 0;
+                while (start < size) {
+                    long end = start + rangeSize >= size ? size : nextLineStart(channel, start + rangeSize);
+                    ranges.add(new Range(file.toAbsolutePath().toString(), start, end));
+                    start = end;
+                }
+            }
+        }
+        return ranges;
+    }
+
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        // A line is at most 100 bytes of name, ';', 5 bytes of temperature and '\n'
+        ByteBuffer buffer = ByteBuffer.allocate(128);
+        channel.read(buffer, position);
+        for (int i = 0; i < buffer.position(); i++) {
+            if (buffer.get(i) == '\n') {
+                return position + i + 1;
+            }
+        }
+        return channel.size();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events for the phases of a run, so that a recording shows per thread when
+ * shards were claimed and finished, which stations were new to a table, and how long the serial
+ * merge and unmap phases took. E.g.:
+ *
+ * <pre>
+ * java -XX:StartFlightRecording=filename=run.jfr,settings=profile ... CalculateAverage_thomaswue
+ * jfr print --categories 1BRC run.jfr
+ * </pre>
+ *
+ * Loading the first event class starts up parts of JFR, which takes about 300 ms even when no
+ * recording is running, so events are only created if {@link #enabled()}. With a recording, fields
+ * that cost something to compute, such as station names, are only filled in after
+ * {@code shouldCommit()}. None of the events records a stack trace.
+ */
+public final class EngineEvents {
+
+    private EngineEvents() {
+    }
+
+    /** Whether JFR has been started, by a command line option or later via jcmd. */
+    public static boolean enabled() {
+        return FlightRecorder.isInitialized();
+    }
+
+    @Name("dev.morling.onebrc.ShardClaim")
+    @Label("Shard Claim")
+    @Category("1BRC")
+    @Description("A worker claimed a shard of the input; the duration is the time spent claiming it")
+    @StackTrace(false)
+    public static final class ShardClaim extends Event {
+        @Label("Engine")
+        public String engine;
+
+        @Label("Offset")
+        @DataAmount
+        public long offset;
+
+        @Label("Length")
+        @DataAmount
+        public long length;
+    }
+
+    @Name("dev.morling.onebrc.ShardFinish")
+    @Label("Shard Finish")
+    @Category("1BRC")
+    @Description("A worker finished a shard; the duration is the time spent parsing it")
+    @StackTrace(false)
+    public static final class ShardFinish extends Event {
+        @Label("Engine")
+        public String engine;
+
+        @Label("Offset")
+        @DataAmount
+        public long offset;
+
+        @Label("Length")
+        @DataAmount
+        public long length;
+    }
+
+    @Name("dev.morling.onebrc.NewStation")
+    @Label("New Station")
+    @Category("1BRC")
+    @Description("A station was inserted into the hash table of a worker")
+    @StackTrace(false)
+    public static final class NewStation extends Event {
+        @Label("Engine")
+        public String engine;
+
+        @Label("Station")
+        public String station;
+
+        @Label("Stations")
+        @Description("Stations in the table, including this one")
+        public int stations;
+
+        @Label("Capacity")
+        public int capacity;
+    }
+
+    @Name("dev.morling.onebrc.Merge")
+    @Label("Merge")
+    @Category("1BRC")
+    @Description("The results of the workers were merged")
+    @StackTrace(false)
+    public static final class Merge extends Event {
+        @Label("Engine")
+        public String engine;
+
+        @Label("Tables")
+        public int tables;
+
+        @Label("Stations")
+        @Description("Stations in the merged result")
+        public int stations;
+    }
+
+    @Name("dev.morling.onebrc.Unmap")
+    @Label("Unmap")
+    @Category("1BRC")
+    @Description("Mapped input was unmapped")
+    @StackTrace(false)
+    public static final class Unmap extends Event {
+        @Label("Bytes")
+        @Description("Bytes unmapped, 0 if not known, e.g. when an arena was closed")
+        @DataAmount
+        public long bytes;
+
+        @Label("Background")
+        @Description("Whether it was unmapped by an Unmapper thread")
+        public boolean background;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Runs an {@link AggregationEngine} on a measurements file and prints the result like the
+ * baseline. With {@code --engine auto} (the default), the engine is picked for this host and this
+ * input: every available engine runs twice on a sample from the start of the file, and the fastest
+ * one that produces the same result as the others runs on the whole file. Engines without
+ * {@link AggregationEngine.Capability#HIGH_CARDINALITY} are left out if the sample already has
+ * more than 10,000 stations.
+ */
+public class EngineRunner {
+
+    private static final String USAGE = "Usage: engine_runner.sh [--engine <name>|auto] [--threads <n>] [--sample-mb <n>] [--list] [<file>]";
+
+    private static final int MAX_STATIONS = 10_000;
+    private static final int SAMPLE_ROUNDS = 2;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String engineName = "auto";
+        int threads = Runtime.getRuntime().availableProcessors();
+        long sampleBytes = 64L << 20;
+        boolean list = false;
+        Path file = Path.of("./measurements.txt");
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--engine" -> engineName = args[++i];
+                    case "--threads" -> threads = Integer.parseInt(args[++i]);
+                    case "--sample-mb" -> sampleBytes = Long.parseLong(args[++i]) << 20;
+                    case "--list" -> list = true;
+                    default -> {
+                        if (args[i].startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        file = Path.of(args[i]);
+                    }
+                }
+            }
+            if (threads < 1 || sampleBytes <= 0) {
+                throw new IllegalArgumentException("Negative value");
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        if (list) {
+            for (AggregationEngine engine : AggregationEngine.all()) {
+                System.out.printf("%-16s %-13s %s%n", engine.name(), engine.isAvailable() ? "available" : "not available", engine.capabilities());
+            }
+            return;
+        }
+
+        AggregationEngine engine = engineName.equals("auto") ? choose(file, threads, sampleBytes) : AggregationEngine.named(engineName);
+        System.out.println(engine.aggregate(file, threads));
+    }
+
+    /** The fastest engine on a sample of the file, see the class comment. */
+    static AggregationEngine choose(Path file, int threads, long sampleBytes) throws IOException, InterruptedException {
+        List<AggregationEngine> engines = AggregationEngine.all().stream().filter(AggregationEngine::isAvailable).toList();
+        if (engines.isEmpty()) {
+            throw new IllegalStateException("No engine available");
+        }
+        Path sample = sample(file, sampleBytes);
+        try {
+            // The first engine that handles any number of stations tells how many there are.
+            AggregationEngine reference = engines.stream()
+                    .filter(engine -> engine.capabilities().contains(AggregationEngine.Capability.HIGH_CARDINALITY))
+                    .findFirst()
+                    .orElse(engines.get(0));
+            AggregateSnapshot referenceResult = reference.aggregate(sample, threads);
+            String expected = referenceResult.toString();
+            int stations = referenceResult.size();
+
+            AggregationEngine fastest = null;
+            long fastestNanos = Long.MAX_VALUE;
+            for (AggregationEngine engine : engines) {
+                if (stations > MAX_STATIONS && !engine.capabilities().contains(AggregationEngine.Capability.HIGH_CARDINALITY)) {
+                    System.err.printf("%-16s skipped, the sample has %,d stations%n", engine.name(), stations);
+                    continue;
+                }
+                long bestNanos = Long.MAX_VALUE;
+                String result = null;
+                for (int round = 0; round < SAMPLE_ROUNDS; round++) {
+                    long start = System.nanoTime();
+                    result = engine.aggregate(sample, threads).toString();
+                    bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+                }
+                if (!result.equals(expected)) {
+                    System.err.printf("%-16s skipped, its result differs from %s%n", engine.name(), reference.name());
+                    continue;
+                }
+                System.err.printf("%-16s %,8d us on the sample%n", engine.name(), bestNanos / 1_000);
+                if (bestNanos < fastestNanos) {
+                    fastest = engine;
+                    fastestNanos = bestNanos;
+                }
+            }
+            System.err.println("Using " + fastest.name());
+            return fastest;
+        }
+        finally {
+            Files.delete(sample);
+        }
+    }
+
+    // Copies up to sampleBytes from the start of the file to a temporary file, cut after a line.
+    static Path sample(Path file, long sampleBytes) throws IOException {
+        Path sample = Files.createTempFile("measurements-sample", ".txt");
+        try (var in = FileChannel.open(file, StandardOpenOption.READ); var out = FileChannel.open(sample, StandardOpenOption.WRITE)) {
+            long length = Math.min(sampleBytes, in.size());
+            if (length < in.size()) {
+                ByteBuffer tail = ByteBuffer.allocate((int) Math.min(length, 256));
+                in.read(tail, length - tail.capacity());
+                int lineEnd = tail.position();
+                while (lineEnd > 0 && tail.get(lineEnd - 1) != '\n') {
+                    lineEnd--;
+                }
+                length -= tail.position() - lineEnd;
+            }
+            for (long position = 0; position < length;) {
+                position += in.transferTo(position, length - position, out);
+            }
+        }
+        return sample;
+    }
+
+}
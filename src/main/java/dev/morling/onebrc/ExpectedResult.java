@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Exact per-station aggregates kept by a generator while it writes rows, so that the expected
+ * output next to the measurements file does not need a second pass with the baseline.
+ * Temperatures are fixed-point tenths of a degree and stations are identified by their index in
+ * the generator's station list. Not thread-safe; threads keep their own instance and
+ * {@link #addAll(ExpectedResult)} them at the end.
+ */
+public class ExpectedResult {
+
+    private final long[] sum;
+    private final long[] count;
+    private final long[] min;
+    private final long[] max;
+
+    public ExpectedResult(int stations) {
+        this.sum = new long[stations];
+        this.count = new long[stations];
+        this.min = new long[stations];
+        this.max = new long[stations];
+    }
+
+    public void add(int station, long tenths) {
+        if (count[station]++ == 0) {
+            min[station] = tenths;
+            max[station] = tenths;
+        }
+        else {
+            min[station] = Math.min(min[station], tenths);
+            max[station] = Math.max(max[station], tenths);
+        }
+        sum[station] += tenths;
+    }
+
+    public void addAll(ExpectedResult other) {
+        for (int station = 0; station < count.length; station++) {
+            if (other.count[station] == 0) {
+                continue;
+            }
+            if (count[station] == 0) {
+                min[station] = other.min[station];
+                max[station] = other.max[station];
+            }
+            else {
+                min[station] = Math.min(min[station], other.min[station]);
+                max[station] = Math.max(max[station], other.max[station]);
+            }
+            sum[station] += other.sum[station];
+            count[station] += other.count[station];
+        }
+    }
+
+    /**
+     * The result in the format of the baseline, sorted by station name. Stations without rows are
+     * left out. Formatted like {@link AggregateSnapshot#toString()}, which is not used here as the
+     * generators run without preview features.
+     */
+    public String format(List<String> names) {
+        TreeMap<String, Integer> sorted = new TreeMap<>();
+        for (int station = 0; station < count.length; station++) {
+            if (count[station] > 0) {
+                sorted.put(names.get(station), station);
+            }
+        }
+        StringBuilder sb = new StringBuilder(sorted.size() * 32).append('{');
+        for (var entry : sorted.entrySet()) {
+            int station = entry.getValue();
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append('=')
+                    .append(round(min[station] / 10.0)).append('/')
+                    .append(round((sum[station] / 10.0) / count[station])).append('/')
+                    .append(round(max[station] / 10.0));
+        }
+        return sb.append('}').toString();
+    }
+
+    /** Writes the result in the format of the baseline to the .out file belonging to measurementsFile. */
+    public void write(Path measurementsFile, List<String> names) throws IOException {
+        Files.writeString(outputFile(measurementsFile), format(names) + "\n");
+    }
+
+    /** Writes tenths in [-999, 999] with one fractional digit, never as -0.0, and returns the position after it. */
+    static int formatTenths(byte[] buffer, int pos, int tenths) {
+        if (tenths < 0) {
+            buffer[pos++] = '-';
+            tenths = -tenths;
+        }
+        if (tenths >= 100) {
+            buffer[pos++] = (byte) ('0' + tenths / 100);
+        }
+        buffer[pos++] = (byte) ('0' + tenths / 10 % 10);
+        buffer[pos++] = '.';
+        buffer[pos++] = (byte) ('0' + tenths % 10);
+        return pos;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    // measurements.txt or measurements.blkz -> measurements.out
+    static Path outputFile(Path measurementsFile) {
+        String name = measurementsFile.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return measurementsFile.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + ".out");
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the station name hashes of the engines on a station dictionary, e.g.
+ * data/weather_stations.csv, or on a sample of a measurements file. Each {@link Candidate} is a hash,
+ * the way the engine maps it to a slot of a power-of-two table and the step it probes with on a
+ * collision, all as in the engine.
+ * <p>
+ * For each candidate, the lab reports the names sharing their full hash with another name, then
+ * for each table size what inserting the names in the order they first occur leads to: how many
+ * names don't get their home slot, and how many probes a lookup takes, per station and per row (so
+ * weighted by how often a station occurs in the input, which is 1 for each line of a dictionary).
+ * Last is the time to hash a name and map it to a slot, best of a few rounds over all names.
+ * <p>
+ * {@code java dev.morling.onebrc.HashQualityLab [--sample-mb <n>] [--sizes <n>,...] <file>}
+ */
+public class HashQualityLab {
+
+    private static final String USAGE = "Usage: hash_quality_lab.sh [--sample-mb <n>] [--sizes <n>,...] <dictionary or measurements file>";
+
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // Names are read a long at a time, as by the engines, so leave room after the last one.
+    private static final int PADDING = Long.BYTES;
+    private static final long MIN_HASHES_PER_ROUND = 10_000_000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    /** A station name hash as used by one of the engines. */
+    enum Candidate {
+        /** Xor of the name's longs, murmur3 finalizer, re-probing 31 slots further. */
+        THOMASWUE("thomaswue", 31) {
+            @Override
+            long hash(byte[] names, int offset, int length) {
+                return xorFold(names, offset, length);
+            }
+
+            @Override
+            int index(long hash, int mask) {
+                hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+                hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+                return (int) (hash ^ (hash >>> 33)) & mask;
+            }
+        },
+        /** The same before its index mixed all bits of the hash, as in the original submission. */
+        THOMASWUE_FOLD("thomaswue-fold", 31) {
+            @Override
+            long hash(byte[] names, int offset, int length) {
+                return xorFold(names, offset, length);
+            }
+
+            @Override
+            int index(long hash, int mask) {
+                return (int) ((hash ^ (hash >>> 37) ^ (hash >>> 17)) & mask);
+            }
+        },
+        /** 31-polynomial over the signed bytes, as String.hashCode(), linear probing. */
+        IZIAMOS("iziamos", 1) {
+            @Override
+            long hash(byte[] names, int offset, int length) {
+                int hash = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    hash = 31 * hash + names[i];
+                }
+                return hash;
+            }
+
+            @Override
+            int index(long hash, int mask) {
+                return (int) hash & mask;
+            }
+        },
+        /** fxhash of the first and the last int of the name (or byte, if shorter), linear probing. */
+        JINCONGHO("jincongho", 1) {
+            @Override
+            long hash(byte[] names, int offset, int length) {
+                final int seed = 0x9E3779B9;
+                int x, y;
+                if (length >= Integer.BYTES) {
+                    x = (int) INT.get(names, offset);
+                    y = (int) INT.get(names, offset + length - Integer.BYTES);
+                }
+                else {
+                    x = names[offset];
+                    y = names[offset + length - 1];
+                }
+                return (Integer.rotateLeft(x * seed, 5) ^ y) * seed;
+            }
+
+            @Override
+            int index(long hash, int mask) {
+                return (int) hash & mask;
+            }
+        };
+
+        final String label;
+        final int probeStep;
+
+        Candidate(String label, int probeStep) {
+            this.label = label;
+            this.probeStep = probeStep;
+        }
+
+        abstract long hash(byte[] names, int offset, int length);
+
+        abstract int index(long hash, int mask);
+    }
+
+    // Xor of the name's longs, as thomaswue's findResult() hashes it: the last long holds the rest of
+    // the name and the delimiter, shifted so that the delimiter is its highest byte.
+    private static long xorFold(byte[] names, int offset, int length) {
+        long hash = 0;
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            hash ^= (long) LONG.get(names, offset + i);
+        }
+        int remaining = length - i;
+        long last = remaining == 0 ? 0 : (long) LONG.get(names, offset + i) & (-1L >>> ((Long.BYTES - remaining) << 3));
+        last |= (long) ';' << (remaining << 3);
+        return hash ^ (last << ((Long.BYTES - 1 - remaining) << 3));
+    }
+
+    /** The distinct names of a file, in the order they first occur, packed into one array. */
+    record Dictionary(byte[] names, int[] offsets, int[] lengths, long[] rows) {
+
+        int size() {
+            return offsets.length;
+        }
+
+        long totalRows() {
+            return Arrays.stream(rows).sum();
+        }
+
+        /**
+         * Reads the names before the ';' of each line, in the first {@code sampleBytes} of the file.
+         * Empty lines and lines starting with '#' are skipped.
+         */
+        static Dictionary read(Path file, long sampleBytes) throws IOException {
+            Map<String, long[]> counts = new LinkedHashMap<>();
+            long read = 0;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8), 1 << 20)) {
+                String line;
+                while (read < sampleBytes && (line = reader.readLine()) != null) {
+                    read += line.length() + 1;
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    int separator = line.indexOf(';');
+                    String name = separator >= 0 ? line.substring(0, separator) : line;
+                    counts.computeIfAbsent(name, key -> new long[1])[0]++;
+                }
+            }
+            List<byte[]> encoded = new ArrayList<>(counts.size());
+            int totalLength = 0;
+            for (String name : counts.keySet()) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                totalLength += bytes.length;
+            }
+            byte[] names = new byte[totalLength + PADDING];
+            int[] offsets = new int[encoded.size()];
+            int[] lengths = new int[encoded.size()];
+            long[] rows = new long[encoded.size()];
+            int position = 0;
+            int i = 0;
+            for (long[] count : counts.values()) {
+                byte[] bytes = encoded.get(i);
+                System.arraycopy(bytes, 0, names, position, bytes.length);
+                offsets[i] = position;
+                lengths[i] = bytes.length;
+                rows[i] = count[0];
+                position += bytes.length;
+                i++;
+            }
+            return new Dictionary(names, offsets, lengths, rows);
+        }
+    }
+
+    /** Names whose full hash is also the hash of another name. */
+    static int hashCollisions(Candidate candidate, Dictionary dictionary) {
+        long[] hashes = new long[dictionary.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = candidate.hash(dictionary.names(), dictionary.offsets()[i], dictionary.lengths()[i]);
+        }
+        Arrays.sort(hashes);
+        int colliding = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            boolean sameAsPrevious = i > 0 && hashes[i] == hashes[i - 1];
+            boolean sameAsNext = i + 1 < hashes.length && hashes[i] == hashes[i + 1];
+            if (sameAsPrevious || sameAsNext) {
+                colliding++;
+            }
+        }
+        return colliding;
+    }
+
+    /** What inserting all names into an open-addressing table of the given size leads to. */
+    record Probing(int displaced, double probesPerStation, double probesPerRow, int maxProbes) {
+    }
+
+    static Probing probe(Candidate candidate, Dictionary dictionary, int tableSize) {
+        int mask = tableSize - 1;
+        boolean[] taken = new boolean[tableSize];
+        int displaced = 0;
+        long totalProbes = 0;
+        long weightedProbes = 0;
+        int maxProbes = 0;
+        for (int i = 0; i < dictionary.size(); i++) {
+            long hash = candidate.hash(dictionary.names(), dictionary.offsets()[i], dictionary.lengths()[i]);
+            int index = candidate.index(hash, mask);
+            int probes = 1;
+            while (taken[index]) {
+                index = (index + candidate.probeStep) & mask;
+                probes++;
+            }
+            taken[index] = true;
+            if (probes > 1) {
+                displaced++;
+            }
+            totalProbes += probes;
+            weightedProbes += probes * dictionary.rows()[i];
+            maxProbes = Math.max(maxProbes, probes);
+        }
+        return new Probing(displaced, (double) totalProbes / dictionary.size(), (double) weightedProbes / dictionary.totalRows(), maxProbes);
+    }
+
+    /** Best time in ns to hash a name and map it to a slot of a table of the given size. */
+    static double nanosPerHash(Candidate candidate, Dictionary dictionary, int tableSize) {
+        int passes = (int) Math.max(1, MIN_HASHES_PER_ROUND / dictionary.size());
+        double best = Double.MAX_VALUE;
+        long checksum = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                checksum += hashAll(candidate, dictionary, tableSize - 1);
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, (double) elapsed / ((long) passes * dictionary.size()));
+            }
+        }
+        // Keeps the JIT from dropping the hashing.
+        if (checksum == 42) {
+            System.err.print("");
+        }
+        return best;
+    }
+
+    // One loop per candidate, so that each gets its own profile and the hash is inlined.
+    private static long hashAll(Candidate candidate, Dictionary dictionary, int mask) {
+        byte[] names = dictionary.names();
+        int[] offsets = dictionary.offsets();
+        int[] lengths = dictionary.lengths();
+        long sum = 0;
+        switch (candidate) {
+            case THOMASWUE -> {
+                for (int i = 0; i < offsets.length; i++) {
+                    sum += Candidate.THOMASWUE.index(Candidate.THOMASWUE.hash(names, offsets[i], lengths[i]), mask);
+                }
+            }
+            case THOMASWUE_FOLD -> {
+                for (int i = 0; i < offsets.length; i++) {
+                    sum += Candidate.THOMASWUE_FOLD.index(Candidate.THOMASWUE_FOLD.hash(names, offsets[i], lengths[i]), mask);
+                }
+            }
+            case IZIAMOS -> {
+                for (int i = 0; i < offsets.length; i++) {
+                    sum += Candidate.IZIAMOS.index(Candidate.IZIAMOS.hash(names, offsets[i], lengths[i]), mask);
+                }
+            }
+            case JINCONGHO -> {
+                for (int i = 0; i < offsets.length; i++) {
+                    sum += Candidate.JINCONGHO.index(Candidate.JINCONGHO.hash(names, offsets[i], lengths[i]), mask);
+                }
+            }
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long sampleBytes = 64L << 20;
+        int[] sizes = { 1 << 14, 1 << 16, 1 << 17 };
+        Path file = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--sample-mb" -> sampleBytes = Long.parseLong(args[++i]) << 20;
+                    case "--sizes" -> sizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    default -> {
+                        if (args[i].startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        file = Path.of(args[i]);
+                    }
+                }
+            }
+            if (file == null || sampleBytes <= 0 || Arrays.stream(sizes).anyMatch(size -> size <= 0 || Integer.bitCount(size) != 1)) {
+                throw new IllegalArgumentException("Missing file, or a size that is not a power of two");
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        Dictionary dictionary = Dictionary.read(file, sampleBytes);
+        System.out.printf("%,d distinct names in %,d rows of %s%n", dictionary.size(), dictionary.totalRows(), file);
+        for (Candidate candidate : Candidate.values()) {
+            System.out.printf("%n%s (probe step %d): %,d names share their full hash with another%n", candidate.label, candidate.probeStep,
+                    hashCollisions(candidate, dictionary));
+            System.out.printf("  %10s %8s %10s %12s %12s %10s %8s%n", "slots", "load", "displaced", "probes/stn", "probes/row", "max probes", "ns/hash");
+            for (int size : sizes) {
+                if (size <= dictionary.size()) {
+                    System.out.printf("  %,10d too small for %,d names%n", size, dictionary.size());
+                    continue;
+                }
+                Probing probing = probe(candidate, dictionary, size);
+                System.out.printf("  %,10d %8.3f %9.2f%% %12.4f %12.4f %10d %8.2f%n", size, (double) dictionary.size() / size,
+                        100.0 * probing.displaced() / dictionary.size(), probing.probesPerStation(), probing.probesPerRow(), probing.maxProbes(),
+                        nanosPerHash(candidate, dictionary, size));
+            }
+        }
+    }
+}
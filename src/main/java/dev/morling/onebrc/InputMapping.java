@@ -0,0 +1,269 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Maps input files and tells the kernel how they will be read, via madvise(2) and mmap(2) called
+ * through the FFM Linker. All of it is best effort: where the calls are not available (not Linux,
+ * old kernels), the input is mapped and read as usual.
+ * <p>
+ * {@link Prefaulter} touches the pages of the input a few chunks ahead of the parsers, so that they
+ * don't take the page faults themselves. {@link PageFaults} reads the fault counters of the process
+ * from /proc/self/stat, to tell whether page faults or parsing dominate a run.
+ */
+public final class InputMapping {
+
+    static final long PAGE_SIZE = 4096;
+
+    /** How the input will be read. */
+    public enum Advice {
+        NORMAL(0),
+        RANDOM(1),
+        SEQUENTIAL(2),
+        WILLNEED(3),
+        HUGEPAGE(14),
+        /** mmap() with MAP_POPULATE, or madvise(MADV_POPULATE_READ) for a part of a mapping. */
+        POPULATE(22);
+
+        final int madvise;
+
+        Advice(int madvise) {
+            this.madvise = madvise;
+        }
+
+        public static Advice parse(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final int PROT_READ = 0x1;
+    private static final int MAP_PRIVATE = 0x02;
+    private static final int MAP_POPULATE = 0x8000;
+    private static final int O_RDONLY = 0;
+
+    private InputMapping() {
+    }
+
+    /** Maps [offset, offset + length) of the file read-only into the arena, applying the advice. */
+    public static MemorySegment map(Path path, long offset, long length, Arena arena, Advice advice) throws IOException {
+        if (advice == Advice.POPULATE && Native.MMAP != null) {
+            MemorySegment populated = mmapPopulate(path, offset, length, arena);
+            if (populated != null) {
+                return populated;
+            }
+        }
+        MemorySegment segment;
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, offset, length, arena);
+        }
+        advise(segment, 0, length, advice);
+        return segment;
+    }
+
+    /**
+     * Applies the advice to [offset, offset + length) of a mapped segment, e.g. to the shard a parser
+     * is about to read. Returns false if the kernel did not take it.
+     */
+    public static boolean advise(MemorySegment segment, long offset, long length, Advice advice) {
+        if (advice == null || length <= 0 || Native.MADVISE == null) {
+            return false;
+        }
+        // madvise() wants a page-aligned start; the mapping itself always starts on a page.
+        long start = segment.address() + offset;
+        long alignedStart = start & -PAGE_SIZE;
+        try {
+            return (int) Native.MADVISE.invokeExact(MemorySegment.ofAddress(alignedStart), length + (start - alignedStart), advice.madvise) == 0;
+        }
+        catch (Throwable e) {
+            return false;
+        }
+    }
+
+    // Maps with MAP_POPULATE, so that all page table entries exist before the first access.
+    private static MemorySegment mmapPopulate(Path path, long offset, long length, Arena arena) throws IOException {
+        long alignedOffset = offset & -PAGE_SIZE;
+        long mappedLength = length + (offset - alignedOffset);
+        try (Arena scratch = Arena.ofConfined()) {
+            int fd = (int) Native.OPEN.invokeExact(scratch.allocateUtf8String(path.toString()), O_RDONLY, 0);
+            if (fd < 0) {
+                throw new IOException("Cannot open " + path);
+            }
+            MemorySegment address;
+            try {
+                address = (MemorySegment) Native.MMAP.invokeExact(MemorySegment.NULL, mappedLength, PROT_READ, MAP_PRIVATE | MAP_POPULATE, fd,
+                        alignedOffset);
+            }
+            finally {
+                int ignored = (int) Native.CLOSE.invokeExact(fd);
+            }
+            if (address.address() == -1L) {
+                return null;
+            }
+            long base = address.address();
+            return address.reinterpret(mappedLength, arena, segment -> munmap(base, mappedLength))
+                    .asSlice(offset - alignedOffset, length);
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private static void munmap(long address, long length) {
+        try {
+            int ignored = (int) Native.MUNMAP.invokeExact(MemorySegment.ofAddress(address), length);
+        }
+        catch (Throwable e) {
+            // Unmapped at exit instead
+        }
+    }
+
+    static final class Native {
+
+        static final MethodHandle MADVISE = lookup("madvise",
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT));
+        static final MethodHandle MMAP = lookup("mmap", FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT,
+                ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG));
+        static final MethodHandle MUNMAP = lookup("munmap", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG));
+        // open() is variadic, the mode is passed as its first variadic argument.
+        static final MethodHandle OPEN = lookup("open", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT),
+                Linker.Option.firstVariadicArg(2));
+        static final MethodHandle CLOSE = lookup("close", FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+
+        private static MethodHandle lookup(String name, FunctionDescriptor descriptor, Linker.Option... options) {
+            try {
+                Linker linker = Linker.nativeLinker();
+                return linker.defaultLookup()
+                        .find(name)
+                        .map(symbol -> linker.downcallHandle(symbol, descriptor, options))
+                        .orElse(null);
+            }
+            catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        private Native() {
+        }
+    }
+
+    /**
+     * Faults in the pages of a segment, chunk by chunk, staying up to {@code chunksAhead} chunks
+     * ahead of the position the parsers have claimed. With an advice, each chunk is passed to
+     * madvise() (e.g. {@link Advice#POPULATE} or {@link Advice#WILLNEED}) instead of being touched.
+     */
+    public static final class Prefaulter implements AutoCloseable {
+        private static final long IDLE_NANOS = 20_000;
+
+        private final MemorySegment segment;
+        private final long chunkSize;
+        private final int chunksAhead;
+        private final LongSupplier position;
+        private final Advice advice;
+        private final Thread thread;
+        private volatile boolean closed;
+        private volatile long faultedBytes;
+        private long checksum;
+
+        /** {@code position} returns the offset in the segment up to which parsers have claimed input. */
+        public Prefaulter(MemorySegment segment, long chunkSize, int chunksAhead, LongSupplier position, Advice advice) {
+            this.segment = segment;
+            this.chunkSize = chunkSize;
+            this.chunksAhead = chunksAhead;
+            this.position = position;
+            this.advice = advice;
+            this.thread = Thread.ofPlatform().name("prefaulter").daemon().start(this::run);
+        }
+
+        private void run() {
+            long size = segment.byteSize();
+            long faulted = 0;
+            long sum = 0;
+            while (faulted < size && !closed) {
+                long target = Math.min(size, Math.max(position.getAsLong(), faulted) + chunksAhead * chunkSize);
+                if (faulted >= target) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                    continue;
+                }
+                long end = Math.min(target, faulted + chunkSize);
+                if (advice == null || !advise(segment, faulted, end - faulted, advice)) {
+                    for (long page = faulted; page < end; page += PAGE_SIZE) {
+                        sum += segment.get(ValueLayout.JAVA_BYTE, page);
+                    }
+                }
+                faulted = end;
+                faultedBytes = faulted;
+            }
+            checksum = sum;
+        }
+
+        /** Bytes of the segment faulted in so far. */
+        public long faultedBytes() {
+            return faultedBytes;
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            closed = true;
+            thread.join();
+        }
+    }
+
+    /** Page fault counters of this process, from fields 10 and 12 of /proc/self/stat. */
+    public record PageFaults(long minor, long major) {
+
+        private static final Path STAT = Path.of("/proc/self/stat");
+
+        /** The counters now, or zeros where /proc is not available. */
+        public static PageFaults current() {
+            try {
+                String stat = Files.readString(STAT);
+                // The command name in field 2 may contain spaces, so count from its closing parenthesis.
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                return new PageFaults(Long.parseLong(fields[7]), Long.parseLong(fields[9]));
+            }
+            catch (IOException | RuntimeException e) {
+                return new PageFaults(0, 0);
+            }
+        }
+
+        public PageFaults since(PageFaults start) {
+            return new PageFaults(minor - start.minor, major - start.major);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%,d minor and %,d major page faults", minor, major);
+        }
+    }
+}
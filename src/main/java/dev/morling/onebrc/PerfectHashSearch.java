@@ -0,0 +1,390 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Searches a seed for which a one-multiplication hash maps a set of keys to distinct slots, and
+ * prints a ready-to-use lookup table as Java source: the seed, the slot function, the values at
+ * their slots and the keys, for callers that need to check that a key is in the set. Like
+ * PerfectHashSearch_hundredwatt, which found the seed for the 1999 temperature encodings of
+ * CalculateAverage_hundredwatt, but:
+ * <ul>
+ * <li>the keys are in a {@code long[]}, and a seed is dropped at its first collision, found with
+ * a per-thread array of stamps instead of filling a BitSet with all keys;</li>
+ * <li>seed number i is {@code splitmix64(start + i) | 1}, and thread t of n tries the numbers
+ * t, t + n, t + 2n... so that a search is reproducible, and the seed found is the one of the
+ * lowest number whatever the number of threads;</li>
+ * <li>the table size follows from a target load factor, or is given;</li>
+ * <li>the running time is bounded by a number of seeds and a timeout;</li>
+ * <li>the hash is one of several {@link Family families}.</li>
+ * </ul>
+ * The keys are the temperature encodings of CalculateAverage_hundredwatt, or read from a file with
+ * one key per line, decimal or 0x-prefixed hex, optionally followed by a value. Key 0 marks the
+ * empty slots of the table, so it can't be one of them.
+ */
+public class PerfectHashSearch {
+
+    private static final String USAGE = """
+            Usage: perfect_hash_search.sh [--keys <file>|--temperatures] [--family multiply_mod|multiply_shift|xor_shift]
+                                          [--load-factor <f>|--slots <n>] [--threads <n>] [--start <n>] [--max-seeds <n>]
+                                          [--timeout <seconds>] [--seed <seed>] [--output <file>]""";
+
+    private static final long REPORT_INTERVAL = 1 << 16;
+
+    // Seeds timed on one thread to estimate how many the search can try before its timeout.
+    private static final long CALIBRATION_SEEDS = 1 << 18;
+    // How far the expected seeds may exceed the affordable ones before the search isn't started,
+    // leaving room for structured keys to beat random slots.
+    private static final double HOPELESS_FACTOR = 1e6;
+
+    /** How a key and a seed give a slot in [0, slots). */
+    enum Family {
+        /** {@code ((key * seed) & Long.MAX_VALUE) % slots}, as in CalculateAverage_hundredwatt. A prime number of slots works best. */
+        MULTIPLY_MOD("(int) (((key * SEED) & Long.MAX_VALUE) % SLOTS)") {
+            @Override
+            int slot(long key, long seed, int slots) {
+                return (int) (((key * seed) & Long.MAX_VALUE) % slots);
+            }
+        },
+        /** The high 32 bits of {@code key * seed}, scaled to the slots by a multiply-high instead of a division. */
+        MULTIPLY_SHIFT("(int) ((((key * SEED) >>> 32) * SLOTS) >>> 32)") {
+            @Override
+            int slot(long key, long seed, int slots) {
+                return (int) ((((key * seed) >>> 32) * slots) >>> 32);
+            }
+        },
+        /** {@code key * seed} with its high bits xor-shifted into the low ones, then scaled as MULTIPLY_SHIFT. */
+        XOR_SHIFT("(int) (((((key * SEED) ^ ((key * SEED) >>> 29)) & 0xFFFFFFFFL) * SLOTS) >>> 32)") {
+            @Override
+            int slot(long key, long seed, int slots) {
+                long h = key * seed;
+                return (int) ((((h ^ (h >>> 29)) & 0xFFFFFFFFL) * slots) >>> 32);
+            }
+        };
+
+        // The slot function in the generated source, in terms of key, SEED and SLOTS.
+        final String expression;
+
+        Family(String expression) {
+            this.expression = expression;
+        }
+
+        abstract int slot(long key, long seed, int slots);
+    }
+
+    /** Distinct keys and the value of each. */
+    record KeySet(String description, long[] keys, long[] values) {
+
+        /** The temperatures -99.9 to 99.9 as CalculateAverage_hundredwatt reads them: the bytes of e.g. "-12.3" in a long, valued in tenths. */
+        static KeySet temperatures() {
+            long[] keys = new long[1999];
+            long[] values = new long[1999];
+            for (int i = -999; i <= 999; i++) {
+                long word = 0;
+                int shift = 0;
+                if (i < 0) {
+                    word |= ((long) '-') << shift;
+                    shift += 8;
+                }
+                int abs = Math.abs(i);
+                if (abs >= 100) {
+                    word |= ((long) (abs / 100 + '0')) << shift;
+                    shift += 8;
+                }
+                word |= ((long) (abs / 10 % 10 + '0')) << shift;
+                shift += 8;
+                word |= ((long) '.') << shift;
+                shift += 8;
+                word |= ((long) (abs % 10 + '0')) << shift;
+                keys[i + 999] = word;
+                values[i + 999] = i;
+            }
+            return new KeySet("1,999 temperature encodings", keys, values);
+        }
+
+        /** One key per line, optionally followed by its value, separated by whitespace, ';' or ','. The value defaults to the line number. */
+        static KeySet read(Path file) throws IOException {
+            List<String> lines = Files.readAllLines(file);
+            long[] keys = new long[lines.size()];
+            long[] values = new long[lines.size()];
+            int count = 0;
+            for (String line : lines) {
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("[\\s;,]+");
+                keys[count] = parse(fields[0]);
+                if (keys[count] == 0) {
+                    throw new IllegalArgumentException("Key 0 in " + file + " is reserved for empty slots");
+                }
+                values[count] = fields.length > 1 ? parse(fields[1]) : count;
+                count++;
+            }
+            keys = Arrays.copyOf(keys, count);
+            long[] sorted = keys.clone();
+            Arrays.sort(sorted);
+            for (int i = 1; i < sorted.length; i++) {
+                if (sorted[i] == sorted[i - 1]) {
+                    throw new IllegalArgumentException("Duplicate key " + sorted[i] + " in " + file);
+                }
+            }
+            return new KeySet(String.format("%,d keys of %s", count, file), keys, Arrays.copyOf(values, count));
+        }
+
+        private static long parse(String number) {
+            if (number.startsWith("0x") || number.startsWith("0X")) {
+                return Long.parseUnsignedLong(number.substring(2), 16);
+            }
+            return Long.parseLong(number);
+        }
+    }
+
+    // Seed number i, see the class comment.
+    static long seed(long start, long i) {
+        long z = start + i * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return (z ^ (z >>> 31)) | 1;
+    }
+
+    /**
+     * The number of seeds to try before one is perfect if the slots of each seed were random:
+     * 1 / ((1 - 1/slots) * (1 - 2/slots) * ... * (1 - (keys - 1)/slots)), as in the birthday problem.
+     * Structured keys such as the temperature encodings can do much better with a multiplicative hash.
+     */
+    static double expectedSeeds(int keys, int slots) {
+        double log = 0;
+        for (int i = 1; i < keys; i++) {
+            log -= Math.log1p(-(double) i / slots);
+        }
+        return Math.exp(log);
+    }
+
+    /** Seeds per second on one thread, timed on the first CALIBRATION_SEEDS seed numbers. */
+    static double seedsPerSecond(long[] keys, Family family, int slots, long start) throws InterruptedException {
+        long startNanos = System.nanoTime();
+        search(keys, family, slots, 1, start, CALIBRATION_SEEDS, Long.MAX_VALUE, new PrintStream(OutputStream.nullOutputStream()));
+        return CALIBRATION_SEEDS / Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+    }
+
+    /** Whether the seed maps all keys to distinct slots. */
+    static boolean isPerfect(long[] keys, Family family, long seed, int slots) {
+        boolean[] taken = new boolean[slots];
+        for (long key : keys) {
+            int slot = family.slot(key, seed, slots);
+            if (taken[slot]) {
+                return false;
+            }
+            taken[slot] = true;
+        }
+        return true;
+    }
+
+    /** The lowest seed number below maxSeeds whose seed is perfect, or -1 if there is none or time ran out. */
+    static long search(long[] keys, Family family, int slots, int threads, long start, long maxSeeds, long deadlineNanos, PrintStream progress)
+            throws InterruptedException {
+        AtomicLong found = new AtomicLong(Long.MAX_VALUE);
+        AtomicLong tried = new AtomicLong();
+        long startNanos = System.nanoTime();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            workers[t] = Thread.ofPlatform().name("search-" + t).start(() -> {
+                // stamps[slot] == stamp if the slot is taken by a key of the current seed
+                int[] stamps = new int[slots];
+                int stamp = 0;
+                long sinceReport = 0;
+                long lastReport = startNanos;
+                for (long i = first; i < maxSeeds && i < found.get(); i += threads) {
+                    if (++stamp == 0) {
+                        Arrays.fill(stamps, 0);
+                        stamp = 1;
+                    }
+                    long seed = seed(start, i);
+                    boolean perfect = true;
+                    for (long key : keys) {
+                        int slot = family.slot(key, seed, slots);
+                        if (stamps[slot] == stamp) {
+                            perfect = false;
+                            break;
+                        }
+                        stamps[slot] = stamp;
+                    }
+                    if (perfect) {
+                        found.accumulateAndGet(i, Math::min);
+                        break;
+                    }
+                    if (++sinceReport == REPORT_INTERVAL) {
+                        long total = tried.addAndGet(sinceReport);
+                        sinceReport = 0;
+                        long now = System.nanoTime();
+                        if (now > deadlineNanos) {
+                            break;
+                        }
+                        if (first == 0 && now - lastReport >= 1_000_000_000L) {
+                            lastReport = now;
+                            double seconds = (now - startNanos) / 1e9;
+                            progress.printf("%,d seeds in %.1f s, %,.0f seeds/s%n", total, seconds, total / seconds);
+                        }
+                    }
+                }
+                tried.addAndGet(sinceReport);
+            });
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        progress.printf("%,d seeds tried in %.1f s, %,.0f seeds/s%n", tried.get(), seconds, tried.get() / seconds);
+        return found.get() == Long.MAX_VALUE ? -1 : found.get();
+    }
+
+    /** The lookup table as Java source, see the class comment. */
+    static String emit(KeySet keySet, Family family, long seed, int slots) {
+        long[] keys = new long[slots];
+        long[] values = new long[slots];
+        long min = 0;
+        long max = 0;
+        for (int i = 0; i < keySet.keys().length; i++) {
+            int slot = family.slot(keySet.keys()[i], seed, slots);
+            keys[slot] = keySet.keys()[i];
+            values[slot] = keySet.values()[i];
+            min = Math.min(min, values[slot]);
+            max = Math.max(max, values[slot]);
+        }
+        String valueType = min >= Short.MIN_VALUE && max <= Short.MAX_VALUE ? "short" : min >= Integer.MIN_VALUE && max <= Integer.MAX_VALUE ? "int" : "long";
+
+        StringBuilder source = new StringBuilder();
+        source.append(String.format("// Perfect hash of %s into %,d slots (load factor %.3f), generated by PerfectHashSearch.%n", keySet.description(), slots,
+                (double) keySet.keys().length / slots));
+        source.append(String.format("// Slots without a key hold key 0 and value 0; check KEYS[slot(key)] == key if other keys can occur.%n"));
+        source.append(String.format("static final long SEED = %dL;%n", seed));
+        source.append(String.format("static final int SLOTS = %d;%n", slots));
+        source.append(String.format("%nstatic int slot(long key) {%n    return %s;%n}%n", family.expression));
+        appendArray(source, "long", "KEYS", keys, true);
+        appendArray(source, valueType, "VALUES", values, false);
+        return source.toString();
+    }
+
+    private static void appendArray(StringBuilder source, String type, String name, long[] array, boolean hex) {
+        source.append(String.format("%nstatic final %s[] %s = {", type, name));
+        for (int i = 0; i < array.length; i++) {
+            source.append(i % (hex ? 6 : 16) == 0 ? "\n    " : " ");
+            if (hex) {
+                source.append(String.format("0x%016xL", array[i]));
+            }
+            else {
+                source.append(type.equals("long") ? array[i] + "L" : type.equals("short") && array[i] < 0 ? "(short) " + array[i] : Long.toString(array[i]));
+            }
+            source.append(i + 1 < array.length ? "," : "");
+        }
+        source.append(String.format("%n};%n"));
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path keysFile = null;
+        Family family = Family.MULTIPLY_MOD;
+        double loadFactor = 0.4;
+        int slots = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long start = 0;
+        long maxSeeds = Long.MAX_VALUE;
+        long timeoutSeconds = 600;
+        Long fixedSeed = null;
+        Path output = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--keys" -> keysFile = Path.of(args[++i]);
+                    case "--temperatures" -> keysFile = null;
+                    case "--family" -> family = Family.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    case "--load-factor" -> loadFactor = Double.parseDouble(args[++i]);
+                    case "--slots" -> slots = Integer.parseInt(args[++i]);
+                    case "--threads" -> threads = Integer.parseInt(args[++i]);
+                    case "--start" -> start = Long.parseLong(args[++i]);
+                    case "--max-seeds" -> maxSeeds = Long.parseLong(args[++i]);
+                    case "--timeout" -> timeoutSeconds = Long.parseLong(args[++i]);
+                    case "--seed" -> fixedSeed = Long.parseLong(args[++i]);
+                    case "--output" -> output = Path.of(args[++i]);
+                    default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (loadFactor <= 0 || loadFactor > 1 || slots < 0 || threads < 1 || maxSeeds < 1 || timeoutSeconds < 1) {
+                throw new IllegalArgumentException("Invalid value");
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        KeySet keySet = keysFile != null ? KeySet.read(keysFile) : KeySet.temperatures();
+        if (slots == 0) {
+            slots = (int) Math.ceil(keySet.keys().length / loadFactor);
+        }
+        if (slots < keySet.keys().length) {
+            throw new IllegalArgumentException("Fewer slots than keys");
+        }
+        System.err.printf("Searching a %s seed for %s in %,d slots with %d threads%n", family.name().toLowerCase(Locale.ROOT), keySet.description(), slots,
+                threads);
+        double expected = expectedSeeds(keySet.keys().length, slots);
+        System.err.printf("With random slots, a seed would be perfect about once in %.3g seeds%n", expected);
+
+        long seed;
+        if (fixedSeed != null) {
+            if (!isPerfect(keySet.keys(), family, fixedSeed, slots)) {
+                System.err.println("Seed " + fixedSeed + " is not perfect");
+                System.exit(1);
+            }
+            seed = fixedSeed;
+        }
+        else {
+            double affordable = Math.min(maxSeeds, seedsPerSecond(keySet.keys(), family, slots, start) * threads * timeoutSeconds);
+            if (expected > HOPELESS_FACTOR * affordable) {
+                System.err.printf("Only about %.3g seeds fit in --max-seeds and --timeout (%d s), far too few to find one;%n", affordable, timeoutSeconds);
+                System.err.println("try more slots (--slots or a lower --load-factor) or fewer keys");
+                System.exit(1);
+            }
+            long deadline = System.nanoTime() + timeoutSeconds * 1_000_000_000L;
+            long number = search(keySet.keys(), family, slots, threads, start, maxSeeds, deadline, System.err);
+            if (number < 0) {
+                System.err.println("No perfect seed found, try more slots, another family, or more seeds or time");
+                System.exit(1);
+            }
+            seed = seed(start, number);
+            System.err.printf("Found seed number %,d: %d%n", number, seed);
+        }
+
+        String source = emit(keySet, family, seed, slots);
+        if (output != null) {
+            Files.writeString(output, source);
+        }
+        else {
+            System.out.print(source);
+        }
+    }
+}
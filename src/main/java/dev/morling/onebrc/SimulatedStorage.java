@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Makes storage slow and jittery on a local box, to see how well an engine keeps its cores busy
+ * when the input does not come from a RAM disk as in the official evaluation.
+ * <p>
+ * A {@link Throttle} is shared by all readers of a file, like the device behind it. Each request
+ * of up to {@link Profile#requestSize()} bytes takes its share of the bandwidth, then completes
+ * after the latency of the device; requests in flight at the same time overlap their latencies,
+ * so engines with more outstanding requests get closer to the bandwidth. Now and then a request
+ * hits a latency spike, which stalls the whole device. The bytes themselves still come from the
+ * page cache: only their timing is simulated.
+ * <p>
+ * {@link ThrottledChannel} is a read()-based reader going through a throttle. Mapped input is
+ * throttled by awaiting each range before parsing it, see {@link Throttle#await(long, long)}.
+ */
+public final class SimulatedStorage {
+
+    private SimulatedStorage() {
+    }
+
+    /**
+     * How the storage behaves. Parsed from a preset name ({@code ramdisk}, {@code nvme},
+     * {@code ssd}, {@code network}, {@code hdd}), optionally followed by overrides, e.g.
+     * {@code network,bandwidth=50m,spike=0.02}. Keys are {@code bandwidth} (bytes per second, 0 for unlimited),
+     * {@code request} (bytes), {@code latency}, {@code spike} (probability per request),
+     * {@code spike-latency} and {@code seed}. Sizes take k/m/g suffixes, durations us/ms/s.
+     */
+    public record Profile(long bytesPerSecond, long requestSize, long latencyNanos, double spikeProbability, long spikeNanos, long seed) {
+
+        public Profile {
+            if (bytesPerSecond < 0 || requestSize <= 0 || requestSize > Integer.MAX_VALUE || latencyNanos < 0 || spikeNanos < 0 || spikeProbability < 0
+                    || spikeProbability > 1) {
+                throw new IllegalArgumentException("Invalid storage profile");
+            }
+        }
+
+        public static final Profile RAMDISK = new Profile(0, 1 << 20, 0, 0, 0, 0);
+        public static final Profile NVME = new Profile(3_000_000_000L, 1 << 20, 80_000, 0.0005, 2_000_000, 0);
+        public static final Profile SSD = new Profile(500_000_000L, 512 << 10, 150_000, 0.001, 10_000_000, 0);
+        public static final Profile NETWORK = new Profile(250_000_000L, 256 << 10, 1_000_000, 0.01, 80_000_000, 0);
+        public static final Profile HDD = new Profile(150_000_000L, 1 << 20, 8_000_000, 0.005, 50_000_000, 0);
+
+        public static Profile parse(String spec) {
+            String[] parts = spec.split(",");
+            int first = 0;
+            Profile profile = switch (parts[0].trim().toLowerCase(Locale.ROOT)) {
+                case "ramdisk" -> RAMDISK;
+                case "nvme" -> NVME;
+                case "ssd" -> SSD;
+                case "network" -> NETWORK;
+                case "hdd" -> HDD;
+                default -> {
+                    first = -1;
+                    yield RAMDISK;
+                }
+            };
+            for (int i = first + 1; i < parts.length; i++) {
+                String[] keyValue = parts[i].trim().split("=", 2);
+                if (keyValue.length != 2) {
+                    throw new IllegalArgumentException("Not a storage preset or key=value: " + parts[i]);
+                }
+                String value = keyValue[1].trim();
+                profile = switch (keyValue[0].trim()) {
+                    case "bandwidth" -> new Profile(parseSize(value), profile.requestSize, profile.latencyNanos, profile.spikeProbability, profile.spikeNanos,
+                            profile.seed);
+                    case "request" -> new Profile(profile.bytesPerSecond, parseSize(value), profile.latencyNanos, profile.spikeProbability, profile.spikeNanos,
+                            profile.seed);
+                    case "latency" -> new Profile(profile.bytesPerSecond, profile.requestSize, parseNanos(value), profile.spikeProbability, profile.spikeNanos,
+                            profile.seed);
+                    case "spike" -> new Profile(profile.bytesPerSecond, profile.requestSize, profile.latencyNanos, Double.parseDouble(value), profile.spikeNanos,
+                            profile.seed);
+                    case "spike-latency" -> new Profile(profile.bytesPerSecond, profile.requestSize, profile.latencyNanos, profile.spikeProbability,
+                            parseNanos(value), profile.seed);
+                    case "seed" -> new Profile(profile.bytesPerSecond, profile.requestSize, profile.latencyNanos, profile.spikeProbability, profile.spikeNanos,
+                            Long.parseLong(value));
+                    default -> throw new IllegalArgumentException("Unknown storage key " + keyValue[0]);
+                };
+            }
+            return profile;
+        }
+
+        private static long parseSize(String value) {
+            long unit = switch (Character.toLowerCase(value.charAt(value.length() - 1))) {
+                case 'k' -> 1L << 10;
+                case 'm' -> 1L << 20;
+                case 'g' -> 1L << 30;
+                default -> 1;
+            };
+            return Long.parseLong(unit == 1 ? value : value.substring(0, value.length() - 1)) * unit;
+        }
+
+        private static long parseNanos(String value) {
+            if (value.endsWith("us")) {
+                return Long.parseLong(value.substring(0, value.length() - 2)) * 1_000;
+            }
+            if (value.endsWith("ms")) {
+                return Long.parseLong(value.substring(0, value.length() - 2)) * 1_000_000;
+            }
+            if (value.endsWith("s")) {
+                return Long.parseLong(value.substring(0, value.length() - 1)) * 1_000_000_000;
+            }
+            return Long.parseLong(value);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s, %,d KB requests, %,d us latency, %.2f%% spikes of %,d ms",
+                    bytesPerSecond == 0 ? "unlimited" : String.format("%,d MB/s", bytesPerSecond >> 20), requestSize >> 10, latencyNanos / 1_000,
+                    spikeProbability * 100, spikeNanos / 1_000_000);
+        }
+    }
+
+    /** The device behind a file, shared by all threads reading it. Thread-safe. */
+    public static final class Throttle {
+        private final Profile profile;
+        private final SplittableRandom random;
+        // When the device has transferred everything requested so far
+        private long busyUntil;
+        private long requests;
+        private long bytes;
+        private long spikes;
+        private long waitedNanos;
+
+        public Throttle(Profile profile) {
+            this.profile = profile;
+            this.random = new SplittableRandom(profile.seed());
+            this.busyUntil = System.nanoTime();
+        }
+
+        public Profile profile() {
+            return profile;
+        }
+
+        /** Blocks for as long as a single request for that many bytes takes, at most requestSize() bytes. */
+        public void await(long length) {
+            long now = System.nanoTime();
+            long readyAt;
+            synchronized (this) {
+                long transferNanos = profile.bytesPerSecond() == 0 ? 0 : length * 1_000_000_000L / profile.bytesPerSecond();
+                busyUntil = Math.max(busyUntil, now) + transferNanos;
+                readyAt = busyUntil + profile.latencyNanos();
+                if (profile.spikeProbability() > 0 && random.nextDouble() < profile.spikeProbability()) {
+                    busyUntil += profile.spikeNanos();
+                    readyAt += profile.spikeNanos();
+                    spikes++;
+                }
+                requests++;
+                bytes += length;
+                waitedNanos += readyAt - now;
+            }
+            long remaining;
+            while ((remaining = readyAt - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+
+        /** Awaits [offset, offset + length) of the file in requests of at most requestSize() bytes. */
+        public void await(long offset, long length) {
+            for (long end = offset + length; offset < end; offset += profile.requestSize()) {
+                await(Math.min(profile.requestSize(), end - offset));
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%,d requests for %,d MB, %,d spikes, %,d ms waited for storage in all threads (%s)", requests, bytes >> 20, spikes,
+                    waitedNanos / 1_000_000,
+                    profile);
+        }
+    }
+
+    /** Reads from a channel through a throttle, one request per read() of at most requestSize() bytes. */
+    public static final class ThrottledChannel implements ReadableByteChannel {
+        private final ReadableByteChannel delegate;
+        private final Throttle throttle;
+
+        public ThrottledChannel(ReadableByteChannel delegate, Throttle throttle) {
+            this.delegate = delegate;
+            this.throttle = throttle;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int length = (int) Math.min(dst.remaining(), throttle.profile().requestSize());
+            if (length == 0) {
+                return 0;
+            }
+            int limit = dst.limit();
+            dst.limit(dst.position() + length);
+            try {
+                int read = delegate.read(dst);
+                if (read > 0) {
+                    throttle.await(read);
+                }
+                return read;
+            }
+            finally {
+                dst.limit(limit);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return delegate.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.util.Arrays;
+
+/**
+ * Perfect hash of a known set of 64-bit keys, e.g. the name hashes of the stations in a dictionary,
+ * built with CHD (compress, hash, displace). Each key falls into a bucket of about
+ * {@code bucketSize} keys, and each bucket gets a displacement such that its keys land in slots no
+ * other key takes. Buckets are placed largest first, while there are still many free slots.
+ * <p>
+ * {@link #index(long)} has no branches: a multiply-xorshift mix, one load of the displacement, a
+ * multiplication and two multiply-high range reductions. For a key that is not in the set it
+ * returns some slot, so callers must check that the slot holds the key they look for.
+ */
+public final class StationPerfectHash {
+
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+    // Displacements tried per bucket before giving up, far more than buckets ever need below a load of 0.99.
+    private static final int MAX_DISPLACEMENT = 1 << 24;
+
+    private final int slots;
+    private final int[] displacements;
+
+    private StationPerfectHash(int slots, int[] displacements) {
+        this.slots = slots;
+        this.displacements = displacements;
+    }
+
+    /**
+     * Builds a perfect hash of the keys, which must be distinct, into {@code keys.length / loadFactor}
+     * slots. A load factor of 1 gives a minimal perfect hash, at the cost of a longer search.
+     */
+    public static StationPerfectHash build(long[] keys, double loadFactor, int bucketSize) {
+        if (loadFactor <= 0 || loadFactor > 1 || bucketSize < 1) {
+            throw new IllegalArgumentException("Load factor must be in (0, 1], bucket size at least 1");
+        }
+        int slots = Math.max(1, (int) Math.ceil(keys.length / loadFactor));
+        int buckets = Math.max(1, (keys.length + bucketSize - 1) / bucketSize);
+
+        // Keys grouped by bucket, as in a counting sort.
+        long[] mixed = new long[keys.length];
+        int[] bucketStart = new int[buckets + 1];
+        for (int i = 0; i < keys.length; i++) {
+            mixed[i] = mix(keys[i]);
+            bucketStart[reduce(mixed[i], buckets) + 1]++;
+        }
+        for (int b = 0; b < buckets; b++) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        long[] grouped = new long[keys.length];
+        int[] fill = Arrays.copyOf(bucketStart, buckets);
+        for (long key : mixed) {
+            grouped[fill[reduce(key, buckets)]++] = key;
+        }
+
+        // Largest buckets first; sorting by (size, bucket) packed into a long.
+        long[] order = new long[buckets];
+        for (int b = 0; b < buckets; b++) {
+            order[b] = ((long) (bucketStart[b + 1] - bucketStart[b]) << 32) | b;
+        }
+        Arrays.sort(order);
+
+        int[] displacements = new int[buckets];
+        boolean[] taken = new boolean[slots];
+        int[] placed = new int[bucketSize * 4];
+        for (int o = buckets - 1; o >= 0; o--) {
+            int b = (int) order[o];
+            int from = bucketStart[b];
+            int size = bucketStart[b + 1] - from;
+            if (size == 0) {
+                break;
+            }
+            if (placed.length < size) {
+                placed = new int[size];
+            }
+            int displacement = 0;
+            search: while (true) {
+                if (displacement == MAX_DISPLACEMENT) {
+                    throw new IllegalStateException("No displacement found for a bucket of " + size + " keys, try a lower load factor or duplicate keys");
+                }
+                for (int i = 0; i < size; i++) {
+                    int slot = slot(grouped[from + i], displacement, slots);
+                    if (taken[slot]) {
+                        for (int j = 0; j < i; j++) {
+                            taken[placed[j]] = false;
+                        }
+                        displacement++;
+                        continue search;
+                    }
+                    taken[slot] = true;
+                    placed[i] = slot;
+                }
+                break;
+            }
+            displacements[b] = displacement;
+        }
+        return new StationPerfectHash(slots, displacements);
+    }
+
+    /** The slot of a key of the set, in [0, slots()). */
+    public int index(long key) {
+        long mixed = mix(key);
+        return slot(mixed, displacements[reduce(mixed, displacements.length)], slots);
+    }
+
+    public int slots() {
+        return slots;
+    }
+
+    private static int slot(long mixedKey, int displacement, int slots) {
+        return reduce((mixedKey ^ (displacement * GOLDEN)) * 0xc4ceb9fe1a85ec53L, slots);
+    }
+
+    // Maps the high 32 bits of a hash to [0, n) without a division.
+    private static int reduce(long hash, int n) {
+        return (int) (((hash >>> 32) * n) >>> 32);
+    }
+
+    // The murmur3 finalizer.
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
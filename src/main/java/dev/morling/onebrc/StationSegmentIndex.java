@@ -0,0 +1,293 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dev.morling.onebrc.CalculateAverage_thomaswue.Result;
+import dev.morling.onebrc.CalculateAverage_thomaswue.ResultTable;
+
+/**
+ * Records which segments of a measurements file contain which stations, so that the stats of a few
+ * stations can be computed by parsing only the segments they occur in. Segments are the
+ * {@link CalculateAverage_thomaswue#SEGMENT_SIZE} units of the thomaswue parse loop, and parsing
+ * one segment at a time uses the same kernel.
+ * <p>
+ * Stations are identified by a 64-bit hash of their name. A hash collision only makes a query
+ * parse more segments than needed; the results are filtered by name.
+ * <p>
+ * Layout, little-endian:
+ *
+ * <pre>
+ * long    magic
+ * int     version
+ * int     segmentSize
+ * long    fileSize            size and modification time of the indexed file
+ * long    fileModified
+ * int     segments
+ * int     n                   number of stations
+ * long    hash[n]             sorted
+ * long    segmentBits[n][(segments + 63) / 64]
+ * </pre>
+ */
+public class StationSegmentIndex {
+
+    private static final long MAGIC = 0x3142524353494458L; // "1BRCSIDX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+
+    private final int segmentSize;
+    private final long fileSize;
+    private final long fileModified;
+    private final int segments;
+    private final int words;
+    private final long[] hashes;
+    private final long[] segmentBits;
+
+    private StationSegmentIndex(int segmentSize, long fileSize, long fileModified, int segments, long[] hashes, long[] segmentBits) {
+        this.segmentSize = segmentSize;
+        this.fileSize = fileSize;
+        this.fileModified = fileModified;
+        this.segments = segments;
+        this.words = (segments + 63) >>> 6;
+        this.hashes = hashes;
+        this.segmentBits = segmentBits;
+    }
+
+    /** Scans the whole file once, in parallel. */
+    public static StationSegmentIndex build(Path file, int threads) throws IOException, InterruptedException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ);
+                Arena arena = Arena.ofShared()) {
+            long size = channel.size();
+            long fileStart = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena).address();
+            long fileEnd = fileStart + size;
+            int segments = (int) Math.ceilDiv(size, CalculateAverage_thomaswue.SEGMENT_SIZE);
+            int words = (segments + 63) >>> 6;
+            AtomicInteger nextSegment = new AtomicInteger();
+
+            Thread[] workers = new Thread[threads];
+            List<Map<Long, long[]>> bitsPerThread = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                Map<Long, long[]> bits = new HashMap<>();
+                bitsPerThread.add(bits);
+                workers[i] = new Thread(() -> {
+                    ResultTable results = new ResultTable(false);
+                    int segment;
+                    while ((segment = nextSegment.getAndIncrement()) < segments) {
+                        CalculateAverage_thomaswue.parseSegment(fileStart + (long) segment * CalculateAverage_thomaswue.SEGMENT_SIZE, fileEnd, fileStart,
+                                results);
+                        for (Result r : results.slots) {
+                            if (r != null) {
+                                bits.computeIfAbsent(hash(r.name), h -> new long[words])[segment >>> 6] |= 1L << segment;
+                            }
+                        }
+                        results.clear();
+                    }
+                });
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+
+            TreeMap<Long, long[]> merged = new TreeMap<>();
+            for (Map<Long, long[]> bits : bitsPerThread) {
+                for (Map.Entry<Long, long[]> entry : bits.entrySet()) {
+                    long[] target = merged.computeIfAbsent(entry.getKey(), h -> new long[words]);
+                    for (int w = 0; w < words; w++) {
+                        target[w] |= entry.getValue()[w];
+                    }
+                }
+            }
+            long[] hashes = new long[merged.size()];
+            long[] segmentBits = new long[merged.size() * words];
+            int station = 0;
+            for (Map.Entry<Long, long[]> entry : merged.entrySet()) {
+                hashes[station] = entry.getKey();
+                System.arraycopy(entry.getValue(), 0, segmentBits, station * words, words);
+                station++;
+            }
+            return new StationSegmentIndex(CalculateAverage_thomaswue.SEGMENT_SIZE, size, Files.getLastModifiedTime(file).toMillis(), segments, hashes,
+                    segmentBits);
+        }
+    }
+
+    public static StationSegmentIndex load(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getLong() != MAGIC) {
+            throw new IOException("Not a station segment index: " + path);
+        }
+        if (buffer.getInt() != VERSION) {
+            throw new IOException("Unsupported version of station segment index: " + path);
+        }
+        int segmentSize = buffer.getInt();
+        long fileSize = buffer.getLong();
+        long fileModified = buffer.getLong();
+        int segments = buffer.getInt();
+        int n = buffer.getInt();
+        long[] hashes = new long[n];
+        buffer.asLongBuffer().get(hashes);
+        buffer.position(buffer.position() + n * Long.BYTES);
+        long[] segmentBits = new long[n * ((segments + 63) >>> 6)];
+        buffer.asLongBuffer().get(segmentBits);
+        return new StationSegmentIndex(segmentSize, fileSize, fileModified, segments, hashes, segmentBits);
+    }
+
+    public void write(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (hashes.length + segmentBits.length) * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(MAGIC).putInt(VERSION).putInt(segmentSize).putLong(fileSize).putLong(fileModified).putInt(segments).putInt(hashes.length);
+        for (long hash : hashes) {
+            buffer.putLong(hash);
+        }
+        for (long bits : segmentBits) {
+            buffer.putLong(bits);
+        }
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /** Whether this index still describes the file, i.e. it has the same size and age. */
+    public boolean isIndexOf(Path file) throws IOException {
+        return segmentSize == CalculateAverage_thomaswue.SEGMENT_SIZE
+                && Files.size(file) == fileSize
+                && Files.getLastModifiedTime(file).toMillis() == fileModified;
+    }
+
+    public int segments() {
+        return segments;
+    }
+
+    /** Indexes of the segments that contain any of the stations, in ascending order. */
+    public int[] segmentsOf(Collection<String> stations) {
+        long[] union = new long[words];
+        for (String station : stations) {
+            int i = Arrays.binarySearch(hashes, hash(nameWords(station)));
+            if (i >= 0) {
+                for (int w = 0; w < words; w++) {
+                    union[w] |= segmentBits[i * words + w];
+                }
+            }
+        }
+        int[] result = new int[Arrays.stream(union).mapToInt(Long::bitCount).sum()];
+        int count = 0;
+        for (int w = 0; w < words; w++) {
+            for (long bits = union[w]; bits != 0; bits &= bits - 1) {
+                result[count++] = (w << 6) + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return result;
+    }
+
+    /** Stats of the given stations, parsing only the segments they occur in. */
+    public TreeMap<String, Result> query(Path file, Collection<String> stations, int threads) throws IOException, InterruptedException {
+        if (!isIndexOf(file)) {
+            throw new IllegalStateException("Index is stale, rebuild it for " + file);
+        }
+        int[] selected = segmentsOf(stations);
+        Set<String> names = new HashSet<>(stations);
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ);
+                Arena arena = Arena.ofShared()) {
+            long fileStart = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize, arena).address();
+            long fileEnd = fileStart + fileSize;
+            AtomicInteger next = new AtomicInteger();
+
+            Thread[] workers = new Thread[threads];
+            List<Result>[] allResults = new List[threads];
+            for (int i = 0; i < threads; i++) {
+                int index = i;
+                workers[i] = new Thread(() -> {
+                    ResultTable results = new ResultTable(false);
+                    int n;
+                    while ((n = next.getAndIncrement()) < selected.length) {
+                        CalculateAverage_thomaswue.parseSegment(fileStart + (long) selected[n] * segmentSize, fileEnd, fileStart, results);
+                    }
+                    List<Result> matching = new ArrayList<>();
+                    for (Result r : CalculateAverage_thomaswue.collectResults(results)) {
+                        if (names.contains(r.calcName())) {
+                            matching.add(r);
+                        }
+                    }
+                    allResults[index] = matching;
+                });
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            return CalculateAverage_thomaswue.accumulateResults(allResults);
+        }
+    }
+
+    // The name as the thomaswue kernel stores it: UTF-8 bytes and ';', in little-endian longs.
+    static long[] nameWords(String name) {
+        byte[] bytes = (name + ";").getBytes(StandardCharsets.UTF_8);
+        long[] words = new long[(bytes.length - 1) / Long.BYTES + 1];
+        for (int i = 0; i < bytes.length; i++) {
+            words[i / Long.BYTES] |= (bytes[i] & 0xFFL) << ((i % Long.BYTES) * 8);
+        }
+        return words;
+    }
+
+    static long hash(long[] nameWords) {
+        long hash = 0;
+        for (long word : nameWords) {
+            hash = (hash ^ word) * 0x9E3779B97F4A7C15L;
+            hash ^= hash >>> 29;
+        }
+        return hash;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length == 3 && args[0].equals("build")) {
+            build(Path.of(args[1]), threads).write(Path.of(args[2]));
+        }
+        else if (args.length >= 4 && args[0].equals("query")) {
+            Path file = Path.of(args[1]);
+            StationSegmentIndex index = load(Path.of(args[2]));
+            List<String> stations = Arrays.asList(args).subList(3, args.length);
+            System.err.printf("Parsing %d of %d segments%n", index.segmentsOf(stations).length, index.segments());
+            System.out.println(index.query(file, stations, threads));
+        }
+        else {
+            System.out.println("Usage: StationSegmentIndex build <measurements file> <index file>");
+            System.out.println("       StationSegmentIndex query <measurements file> <index file> <station>...");
+            System.exit(1);
+        }
+    }
+}
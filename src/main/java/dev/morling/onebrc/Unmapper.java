@@ -0,0 +1,250 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.misc.Unsafe;
+
+/**
+ * Gets the unmapping of the input out of the way of the result.
+ * <p>
+ * The kernel unmaps whatever is still mapped when the process exits, serially and as part of
+ * exit(), which costs 300-400 ms for a 13 GB file (see the notes in CalculateAverage_vemana).
+ * There are two ways around that:
+ * <ul>
+ * <li>Release regions as soon as they are parsed, on background threads, with
+ * {@link #release(MappedByteBuffer)} or {@link #release(AutoCloseable)}, so that little is left mapped at
+ * exit. munmap() itself is serial in the kernel, so more than one thread rarely helps.</li>
+ * <li>{@link #spawnWorker(String[])}: run in a child process and exit the parent as soon as the
+ * child has written its output, leaving the unmapping to the child.</li>
+ * </ul>
+ * {@code java dev.morling.onebrc.Unmapper <file>} measures both against unmapping at exit.
+ */
+public final class Unmapper implements AutoCloseable {
+
+    private static final Unsafe UNSAFE = unsafe();
+    private static final Object END = new Object();
+    private static final String WORKER_ARGUMENT = "--worker";
+
+    // For main()
+    private static final int CHUNK_SIZE = 256 * 1024 * 1024;
+    private static final int PAGE_SIZE = 4096;
+
+    private final BlockingQueue<Object> pending = new LinkedBlockingQueue<>();
+    private final Thread[] threads;
+    private final AtomicLong releasedBytes = new AtomicLong();
+    private final AtomicLong releaseNanos = new AtomicLong();
+    private volatile RuntimeException failure;
+
+    public Unmapper() {
+        this(1);
+    }
+
+    public Unmapper(int threads) {
+        this.threads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            this.threads[i] = Thread.ofPlatform().name("unmapper-" + i).daemon().start(this::run);
+        }
+    }
+
+    private static Unsafe unsafe() {
+        try {
+            Field unsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            unsafe.setAccessible(true);
+            return (Unsafe) unsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Unmaps the buffer right away. It must have been returned by {@code FileChannel.map()} itself,
+     * not be a slice or duplicate of it, and must not be accessed afterwards.
+     */
+    public static void unmap(ByteBuffer buffer) {
+        unmap(buffer, false);
+    }
+
+    private static void unmap(ByteBuffer buffer, boolean background) {
+        if (!EngineEvents.enabled()) {
+            UNSAFE.invokeCleaner(buffer);
+            return;
+        }
+        EngineEvents.Unmap event = new EngineEvents.Unmap();
+        event.begin();
+        UNSAFE.invokeCleaner(buffer);
+        event.bytes = buffer.capacity();
+        event.background = background;
+        event.commit();
+    }
+
+    /** Unmaps the buffer in the background. It must not be accessed afterwards. */
+    public void release(MappedByteBuffer buffer) {
+        pending.add(buffer);
+    }
+
+    /**
+     * Closes the region in the background, typically a shared {@code Arena} holding mapped segments.
+     * Arenas are not referenced here, so that engines without preview features can use this class.
+     */
+    public void release(AutoCloseable region) {
+        pending.add(region);
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Object region = pending.take();
+                if (region == END) {
+                    return;
+                }
+                long start = System.nanoTime();
+                if (region instanceof MappedByteBuffer buffer) {
+                    releasedBytes.addAndGet(buffer.capacity());
+                    unmap(buffer, true);
+                }
+                else if (!EngineEvents.enabled()) {
+                    ((AutoCloseable) region).close();
+                }
+                else {
+                    EngineEvents.Unmap event = new EngineEvents.Unmap();
+                    event.begin();
+                    ((AutoCloseable) region).close();
+                    event.background = true;
+                    event.commit();
+                }
+                releaseNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e) {
+            failure = e instanceof RuntimeException runtimeException ? runtimeException : new IllegalStateException(e);
+        }
+    }
+
+    /** Time spent unmapping so far, in all threads. */
+    public long releaseNanos() {
+        return releaseNanos.get();
+    }
+
+    /** Bytes of MappedByteBuffers unmapped so far. Other regions are not counted. */
+    public long releasedBytes() {
+        return releasedBytes.get();
+    }
+
+    /** Waits until everything released so far is unmapped and stops the threads. */
+    @Override
+    public void close() throws InterruptedException {
+        for (int i = 0; i < threads.length; i++) {
+            pending.add(END);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Unless this already is the worker, runs the current command again with {@link #WORKER_ARGUMENT}
+     * appended, copies its output and returns true as soon as that output ends, which is when the
+     * caller should return from main(). The parent process then exits while the worker is still
+     * unmapping. Returns false in the worker, which does the actual work.
+     */
+    public static boolean spawnWorker(String[] args) throws IOException {
+        if (Arrays.asList(args).contains(WORKER_ARGUMENT)) {
+            return false;
+        }
+        ProcessHandle.Info info = ProcessHandle.current().info();
+        ArrayList<String> workerCommand = new ArrayList<>();
+        info.command().ifPresent(workerCommand::add);
+        info.arguments().ifPresent(arguments -> workerCommand.addAll(Arrays.asList(arguments)));
+        workerCommand.add(WORKER_ARGUMENT);
+        new ProcessBuilder().command(workerCommand).inheritIO().redirectOutput(ProcessBuilder.Redirect.PIPE)
+                .start().getInputStream().transferTo(System.out);
+        return true;
+    }
+
+    /**
+     * Maps the file in chunks, touches every page, prints a checksum and exits. Modes: "exit" leaves
+     * the chunks mapped, "release" releases each chunk once touched, "worker" leaves the chunks mapped
+     * but runs through {@link #spawnWorker(String[])}. Without a mode, runs each of them in a new JVM
+     * and reports how long it took until the output and until the process had exited.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 1) {
+            compare(Path.of(args[0]));
+            return;
+        }
+        String mode = args[1];
+        if (mode.equals("worker") && spawnWorker(args)) {
+            return;
+        }
+        long checksum = 0;
+        List<MappedByteBuffer> mapped = new ArrayList<>();
+        try (var channel = FileChannel.open(Path.of(args[0]), StandardOpenOption.READ); var unmapper = new Unmapper()) {
+            for (long position = 0; position < channel.size(); position += CHUNK_SIZE) {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, channel.size() - position));
+                for (int i = 0; i < chunk.capacity(); i += PAGE_SIZE) {
+                    checksum += chunk.get(i);
+                }
+                if (mode.equals("release")) {
+                    unmapper.release(chunk);
+                }
+                else {
+                    mapped.add(chunk);
+                }
+            }
+        }
+        System.out.println(checksum);
+        System.out.close();
+    }
+
+    private static void compare(Path file) throws Exception {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        for (String mode : List.of("exit", "release", "worker")) {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(java, "--enable-preview", "--class-path", System.getProperty("java.class.path"), Unmapper.class.getName(),
+                    file.toString(), mode).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            try (var output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                output.readLine();
+                long outputNanos = System.nanoTime() - start;
+                process.waitFor();
+                long exitNanos = System.nanoTime() - start;
+                System.out.printf("%-8s output after %,5d ms, exited after %,5d ms%n", mode, outputNanos / 1_000_000, exitNanos / 1_000_000);
+            }
+        }
+    }
+}
@@ -16,53 +16,637 @@
 package dev.morling.onebrc;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.UncheckedIOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
+/**
+ * Compares an actual result with the expected one in a single pass over both, without building
+ * maps. Both results are sorted by station name, as printed by a {@code TreeMap}, so they are
+ * merged like two sorted lists, comparing names as UTF-8 bytes.
+ * <p>
+ * Each result is either the result string itself, a file holding it, which is streamed through a
+ * buffer, or an {@link AggregateSnapshot} file. Values must match byte for byte, so that e.g.
+ * {@code -0.0} or {@code 1.00} for {@code 1.0} is a mismatch; two snapshots must have the same min,
+ * max, sum and count. With {@code --tolerance}, values are parsed and may differ by up to the given
+ * delta, e.g. 0.1 to accept rounding differences of the mean. The first {@code --max-mismatches}
+ * (default 10) mismatches are printed; the exit status is 1 if there are any.
+ */
 public class ValidateResult {
 
-    private static HashMap<String, String> parseOutputStringToMap(String s) {
-        HashMap<String, String> map = new HashMap<>();
+    private static final String USAGE = "Usage: ValidateResult [--tolerance <delta>] [--max-mismatches <n>] <expected> <actual>";
+
+    private static final double EPSILON = 1e-9;
+
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18 };
 
-        String regex = "\\b([\\p{L}.'\\-() ,]*)=([\\d./-]+)";
-        Pattern pattern = Pattern.compile(regex);
-        Matcher matcher = pattern.matcher(s);
-        while (matcher.find()) {
-            String key = matcher.group(1).trim();
-            String value = matcher.group(2).trim();
+    private static final int BUFFER_SIZE = 1 << 20;
 
-            if (key.startsWith(", ")) {
-                key = key.substring(2);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    public static void main(String[] args) throws IOException {
+        double tolerance = -1;
+        int maxMismatches = 10;
+        int i = 0;
+        try {
+            for (; i < args.length - 2; i += 2) {
+                switch (args[i]) {
+                    case "--tolerance" -> {
+                        tolerance = Double.parseDouble(args[i + 1]);
+                        if (!(tolerance >= 0)) {
+                            throw new IllegalArgumentException("Negative tolerance");
+                        }
+                    }
+                    case "--max-mismatches" -> maxMismatches = Integer.parseInt(args[i + 1]);
+                    default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (args.length - i != 2) {
+                throw new IllegalArgumentException("Expected two results");
             }
-            map.put(key, value);
+        }
+        catch (RuntimeException e) {
+            System.out.println(USAGE);
+            System.exit(1);
         }
 
-        return map;
+        Comparison comparison = new Comparison(tolerance, maxMismatches);
+        comparison.compare(open(args[i]), open(args[i + 1]));
+        comparison.printSummary();
+        if (comparison.mismatches > 0) {
+            System.exit(1);
+        }
     }
 
-    public static void main(String[] args) throws IOException {
-        HashMap<String, String> expected = parseOutputStringToMap(args[0]);
-        HashMap<String, String> actual = parseOutputStringToMap(args[1]);
-
-        AtomicLong count = new AtomicLong();
-        if (!expected.equals(actual)) {
-            expected.forEach((key, expectedValue) -> {
-                if (actual.containsKey(key)) {
-                    String actualValue = actual.get(key);
-                    if (!expectedValue.equals(actualValue)) {
-                        System.out.println(key + ", Expected: " + expectedValue + ", Actual: " + actualValue);
-                        count.getAndIncrement();
+    // An argument is either a result string, a file with a result string or an AggregateSnapshot.
+    static Cursor open(String arg) throws IOException {
+        if (!arg.startsWith("{")) {
+            Path path = Path.of(arg);
+            if (Files.isRegularFile(path)) {
+                if (AggregateSnapshot.isSnapshot(path)) {
+                    return new SnapshotCursor(AggregateSnapshot.map(path));
+                }
+                return new TextCursor(FileChannel.open(path, StandardOpenOption.READ), new byte[BUFFER_SIZE], 0);
+            }
+        }
+        byte[] text = arg.getBytes(StandardCharsets.UTF_8);
+        return new TextCursor(null, text, text.length);
+    }
+
+    static final class Comparison {
+        // Negative to compare the value text, see the class comment
+        private final double tolerance;
+        private final int maxMismatches;
+        long expectedStations;
+        long mismatches;
+        private long wrongExpectedStations;
+
+        Comparison(double tolerance, int maxMismatches) {
+            this.tolerance = tolerance;
+            this.maxMismatches = maxMismatches;
+        }
+
+        void compare(Cursor expected, Cursor actual) {
+            boolean hasExpected = expected.next();
+            boolean hasActual = actual.next();
+            while (hasExpected || hasActual) {
+                int order = !hasExpected ? 1 : !hasActual ? -1 : compareNames(expected, actual);
+                if (order < 0) {
+                    expectedStations++;
+                    wrongExpectedStations++;
+                    mismatch("Key: " + expected.name() + " does not exist in actual.");
+                    hasExpected = expected.next();
+                }
+                else if (order > 0) {
+                    mismatch("Key: " + actual.name() + " does not exist in expected.");
+                    hasActual = actual.next();
+                }
+                else {
+                    expectedStations++;
+                    if (!matches(expected, actual)) {
+                        wrongExpectedStations++;
+                        mismatch(expected.name() + ", Expected: " + expected.value() + ", Actual: " + actual.value());
                     }
+                    hasExpected = expected.next();
+                    hasActual = actual.next();
+                }
+            }
+        }
+
+        private boolean matches(Cursor expected, Cursor actual) {
+            if (tolerance < 0) {
+                if (expected instanceof SnapshotCursor e && actual instanceof SnapshotCursor a) {
+                    return e.sameAggregates(a);
+                }
+                return sameBytes(expected.valueData, expected.valueStart, expected.valueEnd - expected.valueStart,
+                        actual.valueData, actual.valueStart, actual.valueEnd - actual.valueStart);
+            }
+            return matches(expected.min(), actual.min()) && matches(expected.mean(), actual.mean()) && matches(expected.max(), actual.max());
+        }
+
+        private boolean matches(double expected, double actual) {
+            return Double.compare(expected, actual) == 0 || Math.abs(expected - actual) <= tolerance + EPSILON;
+        }
+
+        private void mismatch(String message) {
+            if (mismatches++ < maxMismatches) {
+                System.out.println(message);
+            }
+        }
+
+        void printSummary() {
+            if (mismatches > maxMismatches) {
+                System.out.println("... and " + (mismatches - maxMismatches) + " more mismatches");
+            }
+            long correct = expectedStations - wrongExpectedStations;
+            System.out.println("Correct Stations: " + correct + "/" + expectedStations);
+            System.out.println("Solution Correctness: " + String.format("%.2f", expectedStations == 0 ? 100.0 : correct * 100.0 / expectedStations) + "%.");
+        }
+    }
+
+    // Arrays.equals() a word at a time, see compareNames()
+    private static boolean sameBytes(byte[] a, int aStart, int aLength, byte[] b, int bStart, int bLength) {
+        if (aLength != bLength) {
+            return false;
+        }
+        int i = 0;
+        for (; i + Long.BYTES <= aLength; i += Long.BYTES) {
+            if ((long) LONG.get(a, aStart + i) != (long) LONG.get(b, bStart + i)) {
+                return false;
+            }
+        }
+        for (; i < aLength; i++) {
+            if (a[aStart + i] != b[bStart + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int compareNames(Cursor a, Cursor b) {
+        return compareNames(a.nameData, a.nameStart, a.nameLength, b.nameData, b.nameStart, b.nameLength);
+    }
+
+    /**
+     * Compares names the way {@code String.compareTo()} orders them. UTF-8 byte order is code point
+     * order, which only differs from the UTF-16 order of {@code String} between supplementary
+     * characters (lead byte 0xF0 and up) and U+E000 to U+FFFF (lead byte 0xEE, 0xEF).
+     */
+    static int compareNames(byte[] a, int aStart, int aLength, byte[] b, int bStart, int bLength) {
+        // A word at a time, as Arrays.mismatch() has a high fixed cost for names and values this short
+        int length = Math.min(aLength, bLength);
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            long difference = (long) LONG.get(a, aStart + i) ^ (long) LONG.get(b, bStart + i);
+            if (difference != 0) {
+                return compareAt(a, aStart, b, bStart, i + (Long.numberOfTrailingZeros(difference) >>> 3));
+            }
+        }
+        for (; i < length; i++) {
+            if (a[aStart + i] != b[bStart + i]) {
+                return compareAt(a, aStart, b, bStart, i);
+            }
+        }
+        return aLength - bLength;
+    }
+
+    // Compares names that first differ at byte i.
+    private static int compareAt(byte[] a, int aStart, byte[] b, int bStart, int i) {
+        int start = i;
+        while (start > 0 && (a[aStart + start] & 0xC0) == 0x80) {
+            start--;
+        }
+        int leadX = a[aStart + start] & 0xFF;
+        int leadY = b[bStart + start] & 0xFF;
+        if (leadX >= 0xF0 && (leadY == 0xEE || leadY == 0xEF)) {
+            return -1;
+        }
+        if (leadY >= 0xF0 && (leadX == 0xEE || leadX == 0xEF)) {
+            return 1;
+        }
+        return (a[aStart + i] & 0xFF) - (b[bStart + i] & 0xFF);
+    }
+
+    /** Walks the stations of a result; the current name and value text are ranges of byte arrays. */
+    abstract static sealed
+
+    class Cursor
+    permits TextCursor, SnapshotCursor
+    {
+        byte[] nameData;
+        int nameStart;
+        int nameLength;
+        byte[] valueData;
+        int valueStart;
+        int valueEnd;
+
+        abstract boolean next();
+
+        abstract double min();
+
+        abstract double mean();
+
+        abstract double max();
+
+        String name() {
+            return new String(nameData, nameStart, nameLength, StandardCharsets.UTF_8);
+        }
+
+        String value() {
+            return new String(valueData, valueStart, valueEnd - valueStart, StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Walks the entries of a result string like {@code {a=-1.0/2.0/3.0, b=...}}, read through a
+     * buffer that holds at least the current and the previous entry. Names may contain '=' and
+     * ", ", so an entry only ends where a complete min/mean/max value follows the '=', and the last
+     * one where the closing brace is only followed by line breaks. The numbers are only located;
+     * they are parsed when a tolerance asks for them.
+     */
+    static final class TextCursor extends Cursor {
+        private static final long EQUALS = 0x3D3D3D3D3D3D3D3DL;
+        // Returned when an entry runs past the bytes read so far
+        private static final int MORE = -2;
+
+        private final ReadableByteChannel channel;
+        private byte[] data;
+        private int limit;
+        private boolean eof;
+        // Start of the next entry
+        private int pos = 1;
+        private boolean first = true;
+        private boolean done;
+        // Start and end of min, mean and max
+        private final int[] numbers = new int[6];
+
+        // Reads the rest from the channel, if any, into data, which holds limit bytes.
+        TextCursor(ReadableByteChannel channel, byte[] data, int limit) {
+            this.channel = channel;
+            this.data = data;
+            this.limit = limit;
+            this.eof = channel == null;
+            while (this.limit == 0 && !eof) {
+                read();
+            }
+            if (this.limit == 0 || data[0] != '{') {
+                throw new IllegalArgumentException("Not a result: " + new String(data, 0, Math.min(this.limit, 80), StandardCharsets.UTF_8));
+            }
+            this.nameData = data;
+            this.valueData = data;
+        }
+
+        @Override
+        boolean next() {
+            if (done) {
+                return false;
+            }
+            while (true) {
+                int found = first ? closes(pos) : 0;
+                if (found == 1) {
+                    done = true;
+                    return false;
+                }
+                if (found == 0) {
+                    found = findEntry();
+                    if (found == 1) {
+                        first = false;
+                        return true;
+                    }
+                }
+                if (found != MORE) {
+                    throw new IllegalArgumentException("Malformed result at " + new String(data, pos, Math.min(limit - pos, 80), StandardCharsets.UTF_8));
+                }
+                fill();
+            }
+        }
+
+        // 1 if the entry at pos was found, MORE if it needs more bytes, -1 if it is malformed.
+        private int findEntry() {
+            for (int i = pos; (i = indexOfEquals(i)) >= 0; i++) {
+                int next = locateValue(i + 1);
+                if (next == MORE) {
+                    return MORE;
+                }
+                if (next >= 0) {
+                    int previousStart = nameStart;
+                    int previousLength = nameLength;
+                    nameStart = pos;
+                    nameLength = i - pos;
+                    if (!first && compareNames(data, previousStart, previousLength, data, nameStart, nameLength) >= 0) {
+                        throw new IllegalArgumentException("Result is not sorted by station name at " + name());
+                    }
+                    done = next == valueEnd;
+                    pos = next;
+                    return 1;
+                }
+            }
+            return eof ? -1 : MORE;
+        }
+
+        private int indexOfEquals(int from) {
+            int i = from;
+            for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+                long word = (long) LONG.get(data, i) ^ EQUALS;
+                long match = (word - 0x0101010101010101L) & ~word & 0x8080808080808080L;
+                if (match != 0) {
+                    return i + (Long.numberOfTrailingZeros(match) >>> 3);
+                }
+            }
+            for (; i < limit; i++) {
+                if (data[i] == '=') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Locates min/mean/max at from, which must be followed by ", " or the closing brace, and
+         * returns where the next entry starts, valueEnd after the last one, MORE or -1.
+         */
+        private int locateValue(int from) {
+            int i = locateNumber(from, 0);
+            if (i < 0 || data[i] != '/') {
+                return i == MORE ? MORE : -1;
+            }
+            i = locateNumber(i + 1, 2);
+            if (i < 0 || data[i] != '/') {
+                return i == MORE ? MORE : -1;
+            }
+            i = locateNumber(i + 1, 4);
+            if (i < 0) {
+                return i;
+            }
+            int next;
+            if (data[i] == ',') {
+                if (i + 1 == limit) {
+                    return eof ? -1 : MORE;
+                }
+                next = data[i + 1] == ' ' ? i + 2 : -1;
+            }
+            else {
+                int closes = closes(i);
+                next = closes == 1 ? i : closes == MORE ? MORE : -1;
+            }
+            if (next >= 0) {
+                valueStart = from;
+                valueEnd = i;
+            }
+            return next;
+        }
+
+        // 1 if the closing brace is at i, followed by line breaks only, MORE if that is not known yet, else 0.
+        private int closes(int i) {
+            if (i == limit) {
+                return eof ? 0 : MORE;
+            }
+            if (data[i] != '}') {
+                return 0;
+            }
+            for (int j = i + 1; j < limit; j++) {
+                if (data[j] != '\n' && data[j] != '\r') {
+                    return 0;
+                }
+            }
+            return eof ? 1 : MORE;
+        }
+
+        // Stores where the number at from ends and returns it, or MORE or -1.
+        private int locateNumber(int from, int index) {
+            int i = from + Long.BYTES <= limit ? locateTenths(from) : -1;
+            if (i >= 0) {
+                numbers[index] = from;
+                numbers[index + 1] = i;
+                return i;
+            }
+            i = from;
+            if (i < limit && data[i] == '-') {
+                i++;
+            }
+            int digits = 0;
+            boolean point = false;
+            for (; i < limit; i++) {
+                byte b = data[i];
+                if (b >= '0' && b <= '9') {
+                    digits++;
+                }
+                else if (b == '.' && !point) {
+                    point = true;
+                }
+                else {
+                    break;
+                }
+            }
+            if (i == limit) {
+                return eof ? -1 : MORE;
+            }
+            if (digits == 0 || digits > 18 || (data[i] != '/' && data[i] != ',' && data[i] != '}')) {
+                i = locateOtherNumber(from);
+                if (i < 0) {
+                    return i;
+                }
+            }
+            numbers[index] = from;
+            numbers[index + 1] = i;
+            return i;
+        }
+
+        /**
+         * Where a number like -12.3, with up to three integer digits and one fractional digit,
+         * ends, or -1 for any other number. Works on the 8 bytes at from: the point is the first of
+         * bytes 1 to 3 after the sign with bit 4 clear, which is set in digits.
+         */
+        private int locateTenths(int from) {
+            long word = (long) LONG.get(data, from);
+            int sign = (word & 0xFF) == '-' ? 1 : 0;
+            word >>>= sign << 3;
+            int point = Long.numberOfTrailingZeros(~word & 0x10101000L) >>> 3;
+            if (point > 3 || ((word >>> (point << 3)) & 0xFF) != '.') {
+                return -1;
+            }
+            int length = point + 2;
+            long digitMask = ((1L << (length << 3)) - 1) & ~(0xFFL << (point << 3));
+            long digits = word & digitMask;
+            if ((digits & 0xF0F0F0F0F0F0F0F0L) != (0x3030303030303030L & digitMask)
+                    || (((digits & 0x0F0F0F0F0F0F0F0FL) + 0x0606060606060606L) & 0xF0F0F0F0F0F0F0F0L & digitMask) != 0) {
+                return -1;
+            }
+            long next = (word >>> (length << 3)) & 0xFF;
+            return next == '/' || next == ',' || next == '}' ? from + sign + length : -1;
+        }
+
+        // Exponents, NaN and such
+        private int locateOtherNumber(int from) {
+            int i = from;
+            while (i < limit && data[i] != '/' && data[i] != ',' && data[i] != '}' && data[i] != '=' && data[i] != ' ') {
+                i++;
+            }
+            if (i == limit) {
+                return eof ? -1 : MORE;
+            }
+            try {
+                Double.parseDouble(new String(data, from, i - from, StandardCharsets.US_ASCII));
+                return i;
+            }
+            catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        double min() {
+            return parseNumber(numbers[0], numbers[1]);
+        }
+
+        @Override
+        double mean() {
+            return parseNumber(numbers[2], numbers[3]);
+        }
+
+        @Override
+        double max() {
+            return parseNumber(numbers[4], numbers[5]);
+        }
+
+        private double parseNumber(int from, int to) {
+            int i = from;
+            boolean negative = data[i] == '-';
+            if (negative) {
+                i++;
+            }
+            long mantissa = 0;
+            int fractionDigits = -1;
+            for (; i < to; i++) {
+                byte b = data[i];
+                if (b >= '0' && b <= '9') {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (fractionDigits >= 0) {
+                        fractionDigits++;
+                    }
+                }
+                else if (b == '.' && fractionDigits < 0) {
+                    fractionDigits = 0;
+                }
+                else {
+                    return Double.parseDouble(new String(data, from, to - from, StandardCharsets.US_ASCII));
+                }
+            }
+            double value = fractionDigits <= 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+            return negative ? -value : value;
+        }
+
+        // Drops what is before the current entry, which the sort check needs, and reads more.
+        private void fill() {
+            int keep = first ? pos : nameStart;
+            if (keep == 0 && limit == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+                nameData = data;
+                valueData = data;
+            }
+            else if (keep > 0) {
+                System.arraycopy(data, keep, data, 0, limit - keep);
+                limit -= keep;
+                pos -= keep;
+                nameStart -= keep;
+                valueStart -= keep;
+                valueEnd -= keep;
+            }
+            read();
+        }
+
+        private void read() {
+            try {
+                int read = channel.read(ByteBuffer.wrap(data, limit, data.length - limit));
+                if (read < 0) {
+                    eof = true;
+                    channel.close();
                 }
                 else {
-                    count.getAndIncrement();
-                    System.out.println("Key: " + key + " does not exist in actual.");
+                    limit += read;
                 }
-            });
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /** Walks the stations of a snapshot, with the value text formatted like {@link AggregateSnapshot#toString()}. */
+    static final class SnapshotCursor extends Cursor {
+        private final AggregateSnapshot snapshot;
+        private int i = -1;
+        private long minTenths;
+        private long meanTenths;
+        private long maxTenths;
+
+        SnapshotCursor(AggregateSnapshot snapshot) {
+            this.snapshot = snapshot;
+            this.nameData = new byte[128];
+            this.valueData = new byte[80];
+        }
+
+        @Override
+        boolean next() {
+            if (++i >= snapshot.size()) {
+                return false;
+            }
+            nameLength = snapshot.nameLength(i);
+            if (nameData.length < nameLength) {
+                nameData = new byte[nameLength];
+            }
+            MemorySegment.copy(snapshot.segment(), ValueLayout.JAVA_BYTE, snapshot.nameOffset(i), nameData, 0, nameLength);
+            // The rounding of AggregateSnapshot.round(), in tenths
+            minTenths = Math.round(snapshot.min(i) / 10.0 * 10.0);
+            meanTenths = Math.round((snapshot.sum(i) / 10.0) / snapshot.count(i) * 10.0);
+            maxTenths = Math.round(snapshot.max(i) / 10.0 * 10.0);
+            int pos = appendTenths(0, minTenths);
+            valueData[pos++] = '/';
+            pos = appendTenths(pos, meanTenths);
+            valueData[pos++] = '/';
+            valueEnd = appendTenths(pos, maxTenths);
+            return true;
+        }
+
+        boolean sameAggregates(SnapshotCursor other) {
+            return snapshot.min(i) == other.snapshot.min(other.i) && snapshot.max(i) == other.snapshot.max(other.i)
+                    && snapshot.sum(i) == other.snapshot.sum(other.i) && snapshot.count(i) == other.snapshot.count(other.i);
+        }
+
+        @Override
+        double min() {
+            return minTenths / 10.0;
+        }
+
+        @Override
+        double mean() {
+            return meanTenths / 10.0;
+        }
+
+        @Override
+        double max() {
+            return maxTenths / 10.0;
+        }
+
+        // As Double.toString(tenths / 10.0), which formatTenths() matches in its range.
+        private int appendTenths(int pos, long tenths) {
+            if (tenths >= -999 && tenths <= 999) {
+                return ExpectedResult.formatTenths(valueData, pos, (int) tenths);
+            }
+            byte[] digits = Double.toString(tenths / 10.0).getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(digits, 0, valueData, pos, digits.length);
+            return pos + digits.length;
         }
-        System.out.println("Correct Stations: " + (expected.keySet().size() - count.get()) + "/" + expected.keySet().size());
-        System.out.println("Solution Correctness: " + String.format("%.2f", (expected.keySet().size() - count.get()) * 100.0 / expected.keySet().size()) + "%.");
     }
 }
@@ -25,7 +25,7 @@ if [ "$#" -eq 0 ] || [ "$#" -gt 2 ] || [ "$FORK" = "-h" ]; then
   echo "Usage: ./test.sh <fork name> [input file pattern]"
   echo
   echo "For each test sample matching <input file pattern> (default '$DEFAULT_INPUT')"
-  echo "runs <fork name> implementation and diffs the result with the expected output."
+  echo "runs <fork name> implementation and validates the result against the expected output."
   echo "Note that optional <input file pattern> should be quoted if contains wild cards."
   echo
   echo "Examples:"
@@ -39,13 +39,17 @@ if [ -f "./prepare_$FORK.sh" ]; then
   "./prepare_$FORK.sh"
 fi
 
+ACTUAL=$(mktemp)
+trap 'rm -f "$ACTUAL"' EXIT
+
 for sample in $(ls $INPUT); do
   echo "Validating calculate_average_$FORK.sh -- $sample"
 
   rm -f measurements.txt
   ln -s $sample measurements.txt
 
-  diff --color=always <("./calculate_average_$FORK.sh" | ./tocsv.sh) <(./tocsv.sh < ${sample%.txt}.out)
+  "./calculate_average_$FORK.sh" > "$ACTUAL"
+  java --enable-preview --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.ValidateResult ${sample%.txt}.out "$ACTUAL"
 done
 
 rm measurements.txt
@@ -17,11 +17,12 @@
 
 JAVA_OPTS=""
 if [ ! -f measurements_baseline_results.txt ]; then
-  EXPECTED=$(java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CalculateAverage_baseline)
-  echo "$EXPECTED" > measurements_baseline_results.txt
-else
-  EXPECTED=$(cat measurements_baseline_results.txt)
+  java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CalculateAverage_baseline > measurements_baseline_results.txt
 fi
 
-ACTUAL=$(java $JAVA_OPTS --enable-preview --class-path target/average-1.0.0-SNAPSHOT.jar "$1")
-java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.ValidateResult "$EXPECTED" "$ACTUAL"
\ No newline at end of file
+# Results are passed as files, as large ones exceed the maximum length of the command line
+ACTUAL=$(mktemp)
+trap 'rm -f "$ACTUAL"' EXIT
+java $JAVA_OPTS --enable-preview --class-path target/average-1.0.0-SNAPSHOT.jar "$1" > "$ACTUAL"
+shift
+java $JAVA_OPTS --enable-preview --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.ValidateResult "$@" measurements_baseline_results.txt "$ACTUAL"
\ No newline at end of file